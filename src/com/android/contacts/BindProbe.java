@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.os.Debug;
+import android.util.Log;
+
+/**
+ * Measures the time spent and the objects allocated while binding list rows,
+ * and logs the averages every {@link #REPORT_INTERVAL} binds. It only does
+ * anything when verbose logging is enabled for its tag, e.g. with
+ * "adb shell setprop log.tag.RecentCallsList VERBOSE", and must then only be
+ * used from the UI thread. Allocations are only counted between
+ * {@link #start()} and {@link #end()}, since counting slows down the VM.
+ */
+final class BindProbe {
+    private static final int REPORT_INTERVAL = 100;
+
+    private final String mTag;
+    private final String mName;
+    private final boolean mEnabled;
+
+    private long mStartNanos;
+    private int mStartAllocs;
+
+    private int mBinds;
+    private long mNanos;
+    private long mMaxNanos;
+    private int mAllocs;
+
+    BindProbe(String tag, String name) {
+        mTag = tag;
+        mName = name;
+        mEnabled = Log.isLoggable(tag, Log.VERBOSE);
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public void start() {
+        if (!mEnabled) {
+            return;
+        }
+        Debug.startAllocCounting();
+        mStartAllocs = Debug.getThreadAllocCount();
+        mStartNanos = System.nanoTime();
+    }
+
+    /**
+     * Ends the measure of work done for the binds outside of them, e.g. while
+     * the list lays out, which is added to the totals without counting as a
+     * bind.
+     */
+    public void endPart() {
+        if (!mEnabled) {
+            return;
+        }
+        long nanos = System.nanoTime() - mStartNanos;
+
+        mAllocs += Debug.getThreadAllocCount() - mStartAllocs;
+        Debug.stopAllocCounting();
+        mNanos += nanos;
+        if (nanos > mMaxNanos) {
+            mMaxNanos = nanos;
+        }
+    }
+
+    public void end() {
+        if (!mEnabled) {
+            return;
+        }
+        endPart();
+        if (++mBinds == REPORT_INTERVAL) {
+            Log.v(mTag, mName + ": " + mBinds + " binds, "
+                    + (mNanos / mBinds / 1000) + "us average, "
+                    + (mMaxNanos / 1000) + "us max, "
+                    + ((float) mAllocs / mBinds) + " allocations per bind");
+            mBinds = 0;
+            mNanos = 0;
+            mMaxNanos = 0;
+            mAllocs = 0;
+        }
+    }
+}
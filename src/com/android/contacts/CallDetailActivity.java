@@ -203,26 +203,16 @@ public class CallDetailActivity extends ListActivity implements View.OnCreateCon
     	String number = bundle.getString("NUMBER");
     	//Toast.makeText(this, number, Toast.LENGTH_LONG).show();    	
         
-        Uri callUri = Uri.withAppendedPath(Calls.CONTENT_FILTER_URI, Uri.encode(number));        
-        Cursor callCursor = getContentResolver().query(callUri, CALL_LOG_PROJECTION, null, null,
-        		Calls.DEFAULT_SORT_ORDER);
-        		
-        //Wysie_Soh: Loop to find shortest number, and requery.
-        //For some reason, eg. if you have 91234567 and +6591234567 and say, 010891234567
-        //they might not be detected as the same number. This is especially.
-        //Might change to binary search in future.
-        if (callCursor != null && callCursor.moveToFirst()) {
-            do {
-                if (number.length() > callCursor.getString(NUMBER_COLUMN_INDEX).length()) {
-                    number = callCursor.getString(NUMBER_COLUMN_INDEX);
-                }
-            }while(callCursor.moveToNext());
+        // Wysie_Soh: numbers such as 91234567, +6591234567 and 010891234567
+        // belong to the same caller, and the shortest of them is the one used
+        // from here on.
+        ArrayList<ViewEntryData> history = queryHistory(number);
+
+        for (ViewEntryData data : history) {
+            if (number.length() > data.number.length()) {
+                number = data.number;
+            }
         }
-        
-        //Wysie_Soh:Requery with shortest number found. This will ensure we get all entries.       
-        callUri = Uri.withAppendedPath(Calls.CONTENT_FILTER_URI, Uri.encode(number));
-        callCursor = getContentResolver().query(callUri, CALL_LOG_PROJECTION, null, null,
-        		Calls.DEFAULT_SORT_ORDER);        
         mNumber = number;
         
     	ContentResolver resolver = getContentResolver();
@@ -275,31 +265,14 @@ public class CallDetailActivity extends ListActivity implements View.OnCreateCon
     	ViewEntryData firstPlaceHolder = new ViewEntryData();
     	firstPlaceHolder.number = mNumber;
     	logs.add(firstPlaceHolder);
-        try {
-            if (callCursor != null && callCursor.moveToFirst()) {
-            	
-            	do {
-            		ViewEntryData data = new ViewEntryData();
-	                // Read call log specifics
-            		data.id = callCursor.getLong(LOG_COLUMN_INDEX);
-            		data.date = callCursor.getLong(DATE_COLUMN_INDEX);
-            		data.duration = callCursor.getLong(DURATION_COLUMN_INDEX);
-            		data.callType = callCursor.getInt(CALL_TYPE_COLUMN_INDEX);
-            		data.number = callCursor.getString(NUMBER_COLUMN_INDEX);            		
-	                
-            		logs.add(data);	              
-            	}while(callCursor.moveToNext());
-            } else {
-                // Something went wrong reading in our primary data, so we're going to
-                // bail out and show error to users.
-                Toast.makeText(this, R.string.toast_call_detail_error_wysie,
-                        Toast.LENGTH_SHORT).show();
-                finish();
-            }
-        } finally {
-            if (callCursor != null) {
-                callCursor.close();
-            }
+        if (!history.isEmpty()) {
+            logs.addAll(history);
+        } else {
+            // Something went wrong reading in our primary data, so we're going to
+            // bail out and show error to users.
+            Toast.makeText(this, R.string.toast_call_detail_error_wysie,
+                    Toast.LENGTH_SHORT).show();
+            finish();
         }
         
         adapter = new ViewAdapter(this, logs);
@@ -307,6 +280,69 @@ public class CallDetailActivity extends ListActivity implements View.OnCreateCon
     }
 
 
+    /**
+     * Returns the calls from or to the given caller, most recent first. The
+     * call log is queried once for the numbers ending with the same dialable
+     * characters, and the candidates are then matched the way the call log
+     * list groups them.
+     */
+    private ArrayList<ViewEntryData> queryHistory(String number) {
+        ArrayList<ViewEntryData> history = new ArrayList<ViewEntryData>();
+        String suffix = CallLogGrouper.getSuffixKey(number);
+        String selection;
+        String[] selectionArgs;
+
+        if (suffix != null && suffix.length() == CallLogGrouper.SUFFIX_LENGTH) {
+            // The call log has no normalized number column, so the numbers
+            // are matched on their suffix, which must end the number or be
+            // followed by post-dial characters. Stored numbers may have
+            // separators between the digits.
+            StringBuilder pattern = new StringBuilder();
+            for (int i = 0; i < suffix.length(); i++) {
+                pattern.append('%').append(suffix.charAt(i));
+            }
+            selection = Calls.NUMBER + " LIKE ? OR " + Calls.NUMBER + " LIKE ? OR "
+                    + Calls.NUMBER + " LIKE ?";
+            selectionArgs = new String[] {
+                pattern.toString(),
+                pattern.toString() + PhoneNumberUtils.PAUSE + "%",
+                pattern.toString() + PhoneNumberUtils.WAIT + "%"
+            };
+        } else {
+            selection = Calls.NUMBER + "=?";
+            selectionArgs = new String[] { number };
+        }
+
+        Cursor callCursor = getContentResolver().query(Calls.CONTENT_URI, CALL_LOG_PROJECTION,
+                selection, selectionArgs, Calls.DEFAULT_SORT_ORDER);
+
+        if (callCursor == null) {
+            return history;
+        }
+        try {
+            while (callCursor.moveToNext()) {
+                String callNumber = callCursor.getString(NUMBER_COLUMN_INDEX);
+
+                if (callNumber == null || !(callNumber.equals(number)
+                        || CallLogGrouper.isSameNumber(number, callNumber))) {
+                    continue;
+                }
+                ViewEntryData data = new ViewEntryData();
+
+                // Read call log specifics
+                data.id = callCursor.getLong(LOG_COLUMN_INDEX);
+                data.date = callCursor.getLong(DATE_COLUMN_INDEX);
+                data.duration = callCursor.getLong(DURATION_COLUMN_INDEX);
+                data.callType = callCursor.getInt(CALL_TYPE_COLUMN_INDEX);
+                data.number = callNumber;
+                history.add(data);
+            }
+        } finally {
+            callCursor.close();
+        }
+        return history;
+    }
+
     static final class ViewEntry {
         public int icon = -1;
         public String text = null;
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.os.Handler;
+import android.os.Process;
+import android.util.Log;
+
+import com.android.contacts.RecentCallsListActivity.ContactInfo;
+import com.android.contacts.RecentCallsListActivity.RecentCallsInfo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Builds the grouped call log from a call log cursor on a background thread.
+ * The cursor is read in chunks: the numbers of each chunk are resolved in bulk
+ * and its rows are grouped, then the groups found so far are published to the
+ * UI thread. The first chunk is small so that the first screenful of
+ * calls shows up right away, whatever the size of the log. Once the whole log
+ * is grouped, the cursor is handed over to the UI thread inside a
+ * {@link CallLogGroups}.
+ */
+final class CallLogAggregator implements Runnable {
+    private static final String TAG = "CallLogAggregator";
+
+    /** Message sent to the handler with a {@link Snapshot} */
+    static final int MESSAGE_PUBLISH = 100;
+
+    /** Rows read before the first snapshot is published */
+    private static final int FIRST_CHUNK_ROWS = 50;
+
+    /** Rows read between the following snapshots */
+    private static final int CHUNK_ROWS = 500;
+
+    /**
+     * Groups of the call log found at some point of the aggregation. The
+     * groups are owned by the receiver, which must close them.
+     */
+    static final class Snapshot {
+        final CallLogAggregator aggregator;
+        final CallLogGroups groups;
+        /** Contacts resolved since the previous snapshot */
+        final HashMap<String, ContactInfo> contacts;
+        final boolean done;
+
+        Snapshot(CallLogAggregator aggregator, CallLogGroups groups,
+                HashMap<String, ContactInfo> contacts, boolean done) {
+            this.aggregator = aggregator;
+            this.groups = groups;
+            this.contacts = contacts;
+            this.done = done;
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final ContactInfoCache mCache;
+    private final Cursor mCursor;
+    private final Handler mHandler;
+    private volatile boolean mCancelled;
+    private boolean mCursorHandedOver;
+
+    private final ArrayList<RecentCallsInfo> mGroups = new ArrayList<RecentCallsInfo>();
+    private final CallLogGrouper mGrouper = new CallLogGrouper(mGroups);
+
+    /** Every number resolved so far, with null for numbers without a contact */
+    private final HashMap<String, ContactInfo> mResolved = new HashMap<String, ContactInfo>();
+
+    /**
+     * @param cursor a cursor over {@link RecentCallsListActivity#CALL_LOG_PROJECTION}.
+     * The aggregator takes ownership of it, and either closes it or hands it
+     * over with the last snapshot.
+     * @param handler the handler receiving the {@link #MESSAGE_PUBLISH} messages
+     */
+    public CallLogAggregator(ContentResolver resolver, ContactInfoCache cache, Cursor cursor,
+            Handler handler) {
+        mResolver = resolver;
+        mCache = cache;
+        mCursor = cursor;
+        mHandler = handler;
+    }
+
+    public void start() {
+        Thread thread = new Thread(this, TAG);
+
+        thread.start();
+    }
+
+    /**
+     * Stops the aggregation. No snapshot is published after this returns,
+     * although one may already be queued on the handler.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+        try {
+            aggregate();
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Exception while reading the call log", e);
+        } finally {
+            if (!mCursorHandedOver) {
+                mCursor.close();
+            }
+        }
+    }
+
+    private void aggregate() {
+        ArrayList<RecentCallsInfo> chunk = new ArrayList<RecentCallsInfo>(CHUNK_ROWS);
+        int chunkSize = FIRST_CHUNK_ROWS;
+
+        while (!mCancelled) {
+            chunk.clear();
+            while (chunk.size() < chunkSize && mCursor.moveToNext()) {
+                chunk.add(readItem(mCursor));
+            }
+            boolean done = chunk.size() < chunkSize;
+
+            HashMap<String, ContactInfo> contacts = resolve(chunk);
+
+            for (int i = 0; i < chunk.size(); i++) {
+                RecentCallsInfo item = chunk.get(i);
+                ContactInfo info = mResolved.get(item.number);
+
+                if (info != null) {
+                    item.personId = (int) info.personId;
+                }
+                mGrouper.add(item);
+            }
+
+            if (mCancelled) {
+                return;
+            }
+            if (done) {
+                mCursorHandedOver = true;
+                mHandler.obtainMessage(MESSAGE_PUBLISH,
+                        new Snapshot(this, buildGroups(), contacts, true)).sendToTarget();
+                return;
+            }
+            mHandler.obtainMessage(MESSAGE_PUBLISH,
+                    new Snapshot(this, copyGroups(), contacts, false)).sendToTarget();
+            chunkSize = CHUNK_ROWS;
+        }
+    }
+
+    private static RecentCallsInfo readItem(Cursor cursor) {
+        RecentCallsInfo item = new RecentCallsInfo();
+
+        item.number = cursor.getString(RecentCallsListActivity.NUMBER_COLUMN_INDEX);
+        item.type = cursor.getInt(RecentCallsListActivity.CALL_TYPE_COLUMN_INDEX);
+        item.name = cursor.getString(RecentCallsListActivity.CALLER_NAME_COLUMN_INDEX);
+        item.number_label = cursor.getString(
+                RecentCallsListActivity.CALLER_NUMBERLABEL_COLUMN_INDEX);
+        item.number_type = cursor.getInt(
+                RecentCallsListActivity.CALLER_NUMBERTYPE_COLUMN_INDEX);
+        item.date = cursor.getLong(RecentCallsListActivity.DATE_COLUMN_INDEX);
+        item.duration = cursor.getInt(RecentCallsListActivity.DURATION_COLUMN_INDEX);
+        item.personId = -1;
+        item.row = cursor.getPosition();
+        item.nameRow = item.row;
+        return item;
+    }
+
+    /**
+     * Resolves the numbers of the chunk that haven't been seen before, from the
+     * persistent cache when possible.
+     *
+     * @return the contacts found for them
+     */
+    private HashMap<String, ContactInfo> resolve(ArrayList<RecentCallsInfo> chunk) {
+        HashMap<String, ContactInfo> contacts = new HashMap<String, ContactInfo>();
+        HashSet<String> numbers = new HashSet<String>();
+
+        for (int i = 0; i < chunk.size(); i++) {
+            String number = chunk.get(i).number;
+
+            if (mResolved.containsKey(number) || contacts.containsKey(number)) {
+                continue;
+            }
+            ContactInfo info = mCache.get(number);
+
+            if (info != null) {
+                contacts.put(number, info);
+            } else {
+                numbers.add(number);
+            }
+        }
+
+        HashMap<String, ContactInfo> found = CallerIdResolver.resolve(mResolver, numbers);
+
+        mCache.putAll(found);
+        contacts.putAll(found);
+        for (String number : numbers) {
+            mResolved.put(number, found.get(number));
+        }
+        mResolved.putAll(contacts);
+        return contacts;
+    }
+
+    /**
+     * Returns copies of the groups found so far.
+     */
+    private CallLogGroups copyGroups() {
+        final int size = mGroups.size();
+        ArrayList<RecentCallsInfo> copy = new ArrayList<RecentCallsInfo>(size);
+
+        for (int i = 0; i < size; i++) {
+            copy.add(mGroups.get(i).copy());
+        }
+        return new CallLogGroups(this, copy);
+    }
+
+    /**
+     * Returns the compact form of all the groups, backed by the cursor.
+     */
+    private CallLogGroups buildGroups() {
+        final int size = mGroups.size();
+        int[] rows = new int[size];
+        int[] nameRows = new int[size];
+        int[] counts = new int[size];
+        int[] personIds = new int[size];
+
+        for (int i = 0; i < size; i++) {
+            RecentCallsInfo group = mGroups.get(i);
+
+            rows[i] = group.row;
+            nameRows[i] = group.nameRow;
+            counts[i] = group.count;
+            personIds[i] = group.personId;
+        }
+        mGroups.clear();
+        return new CallLogGroups(this, mCursor, size, rows, nameRows, counts, personIds);
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.telephony.PhoneNumberUtils;
+
+import com.android.contacts.RecentCallsListActivity.RecentCallsInfo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Groups call log entries that belong to the same caller. An entry joins the
+ * first group (in insertion order) whose number matches it according to
+ * {@link PhoneNumberUtils#compare(String, String)}, whose person id equals its
+ * own, or whose last eight digits are the same. Instead of running these
+ * comparisons against every group, each group is indexed by its person id, its
+ * eight digit suffix and the last few dialable characters of its number, so
+ * only the handful of groups sharing a key need to be examined.
+ */
+final class CallLogGrouper {
+    /**
+     * Number of trailing dialable characters used to bucket numbers for
+     * {@link PhoneNumberUtils#compare(String, String)}. This must not be longer
+     * than the minimum match length used by compare(), so that any two numbers
+     * it considers equal always land in the same bucket.
+     */
+    static final int SUFFIX_LENGTH = 5;
+
+    /** Number of digits matched by the sloppy comparison. */
+    private static final int SLOPPY_LENGTH = 8;
+
+    private final List<RecentCallsInfo> mGroups;
+
+    /** Index of the first group for each person id */
+    private final HashMap<Integer, Integer> mByPersonId = new HashMap<Integer, Integer>();
+
+    /** Index of the first group for each sloppy eight digit suffix */
+    private final HashMap<String, Integer> mBySloppyKey = new HashMap<String, Integer>();
+
+    /** Indexes of the groups sharing each dialable suffix, in ascending order */
+    private final HashMap<String, ArrayList<Integer>> mBySuffix =
+            new HashMap<String, ArrayList<Integer>>();
+
+    /**
+     * Indexes of the groups whose numbers contain wild characters, and so can't
+     * be bucketed by suffix.
+     */
+    private final ArrayList<Integer> mUnindexed = new ArrayList<Integer>();
+
+    /**
+     * @param groups the list that receives the groups. It must be empty, and
+     * must only be modified through this grouper until {@link #clear()}.
+     */
+    public CallLogGrouper(List<RecentCallsInfo> groups) {
+        mGroups = groups;
+    }
+
+    public void clear() {
+        mGroups.clear();
+        mByPersonId.clear();
+        mBySloppyKey.clear();
+        mBySuffix.clear();
+        mUnindexed.clear();
+    }
+
+    /**
+     * Adds an entry, either merging it into the group of a matching caller or
+     * starting a new group for it.
+     */
+    public void add(RecentCallsInfo item) {
+        final String suffix = getSuffixKey(item.number);
+        final int index = findGroup(item, suffix);
+
+        if (index >= 0) {
+            RecentCallsInfo group = mGroups.get(index);
+
+            if (group.name == null && item.name != null) {
+                group.name = item.name;
+                group.number_label = item.number_label;
+                group.number_type = item.number_type;
+                group.nameRow = item.nameRow;
+            }
+            group.count++;
+            return;
+        }
+
+        final Integer newIndex = mGroups.size();
+
+        mGroups.add(item);
+        if (item.personId != -1 && !mByPersonId.containsKey(item.personId)) {
+            mByPersonId.put(item.personId, newIndex);
+        }
+        String sloppyKey = getSloppyKey(item.number);
+
+        if (sloppyKey != null && !mBySloppyKey.containsKey(sloppyKey)) {
+            mBySloppyKey.put(sloppyKey, newIndex);
+        }
+        if (suffix == null) {
+            if (hasWildChar(item.number)) {
+                mUnindexed.add(newIndex);
+            }
+            // Otherwise compare() can never match this number
+        } else {
+            ArrayList<Integer> bucket = mBySuffix.get(suffix);
+
+            if (bucket == null) {
+                bucket = new ArrayList<Integer>(2);
+                mBySuffix.put(suffix, bucket);
+            }
+            bucket.add(newIndex);
+        }
+    }
+
+    /**
+     * Returns the index of the first group matching the item, or -1.
+     */
+    private int findGroup(RecentCallsInfo item, String suffix) {
+        final String number = item.number;
+        int best = Integer.MAX_VALUE;
+
+        if (item.personId != -1) {
+            Integer index = mByPersonId.get(item.personId);
+
+            if (index != null) {
+                best = index;
+            }
+        }
+
+        String sloppyKey = getSloppyKey(number);
+
+        if (sloppyKey != null) {
+            Integer index = mBySloppyKey.get(sloppyKey);
+
+            if (index != null && index < best) {
+                best = index;
+            }
+        }
+
+        if (suffix == null && hasWildChar(number)) {
+            // A wild character may match anything, fall back to the full scan
+            final int count = Math.min(best, mGroups.size());
+
+            for (int i = 0; i < count; i++) {
+                if (PhoneNumberUtils.compare(mGroups.get(i).number, number)) {
+                    return i;
+                }
+            }
+            return best == Integer.MAX_VALUE ? -1 : best;
+        }
+
+        if (suffix != null) {
+            ArrayList<Integer> bucket = mBySuffix.get(suffix);
+
+            if (bucket != null) {
+                best = firstMatch(bucket, number, best);
+            }
+        }
+        best = firstMatch(mUnindexed, number, best);
+
+        return best == Integer.MAX_VALUE ? -1 : best;
+    }
+
+    /**
+     * Returns the lowest group index in {@code indexes} below {@code best}
+     * whose number compares equal to {@code number}, or {@code best}.
+     */
+    private int firstMatch(ArrayList<Integer> indexes, String number, int best) {
+        final int size = indexes.size();
+
+        for (int i = 0; i < size; i++) {
+            int index = indexes.get(i);
+
+            if (index >= best) {
+                break;
+            }
+            if (PhoneNumberUtils.compare(mGroups.get(index).number, number)) {
+                return index;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns true if the two numbers would be grouped together on their own,
+     * that is without looking at the person they belong to.
+     */
+    static boolean isSameNumber(String a, String b) {
+        if (PhoneNumberUtils.compare(a, b)) {
+            return true;
+        }
+        String sloppyKey = getSloppyKey(a);
+
+        return sloppyKey != null && sloppyKey.equals(getSloppyKey(b));
+    }
+
+    /**
+     * Returns the bucket key for {@link PhoneNumberUtils#compare(String, String)},
+     * mirroring the way it walks numbers backwards: post-dial characters are
+     * dropped and only dialable characters count. Numbers with fewer dialable
+     * characters than {@link #SUFFIX_LENGTH} only ever match an identical
+     * string, so they are keyed by the whole number. Returns null when compare()
+     * can't be predicted from a key, either because it can never match the
+     * number or because the number contains a wild character.
+     */
+    static String getSuffixKey(String number) {
+        if (number == null || number.length() == 0) {
+            return null;
+        }
+
+        int end = number.length();
+
+        for (int i = 0; i < end; i++) {
+            char c = number.charAt(i);
+
+            if (c == PhoneNumberUtils.PAUSE || c == PhoneNumberUtils.WAIT) {
+                end = i;
+                break;
+            }
+        }
+
+        char[] key = new char[SUFFIX_LENGTH];
+        int matched = 0;
+
+        for (int i = end - 1; i >= 0 && matched < SUFFIX_LENGTH; i--) {
+            char c = number.charAt(i);
+
+            if (c == PhoneNumberUtils.WILD) {
+                return null;
+            }
+            if (PhoneNumberUtils.isDialable(c)) {
+                key[SUFFIX_LENGTH - 1 - matched] = c;
+                matched++;
+            }
+        }
+
+        if (matched == SUFFIX_LENGTH) {
+            return new String(key);
+        }
+        // Short numbers only compare equal if every character was matched
+        if (matched == number.length()) {
+            return new String(key, SUFFIX_LENGTH - matched, matched);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the key used by the sloppy comparison, or null if the number is
+     * too short for it.
+     *
+     * Wysie_Soh: PhoneNumberUtils.compare doesn't detect numbers such as
+     * +6591234567 and 010891234567 as the same number, so numbers are also
+     * matched on their last 8 digits.
+     */
+    static String getSloppyKey(String number) {
+        if (number == null || number.length() < SLOPPY_LENGTH) {
+            return null;
+        }
+
+        String stripped = PhoneNumberUtils.stripSeparators(number);
+        int start = number.length() - SLOPPY_LENGTH;
+
+        if (start > stripped.length()) {
+            return null;
+        }
+        return stripped.substring(start);
+    }
+
+    private static boolean hasWildChar(String number) {
+        return number != null && number.indexOf(PhoneNumberUtils.WILD) >= 0;
+    }
+}
@@ -0,0 +1,472 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
+
+import com.android.contacts.RecentCallsListActivity.RecentCallsInfo;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The grouped call log shown by the call log list. Once the whole log has
+ * been grouped, each group is only described by a few ints pointing into the
+ * call log cursor, and {@link RecentCallsInfo} objects are built a page at a
+ * time on a background thread as the list asks for them. Only the first page
+ * and the pages around the rows recently shown are kept, so memory use doesn't
+ * grow with the size of the call log. The text cached on the entries by the
+ * adapter is kept aside when their page is dropped, and put back when it is
+ * built again.
+ * <p>
+ * While the log is still being grouped, the groups found so far are backed
+ * by a list of already built entries instead.
+ * <p>
+ * Must only be used from the UI thread.
+ */
+final class CallLogGroups {
+    private static final String TAG = "CallLogGroups";
+
+    /** Number of entries built at a time */
+    static final int PAGE_SIZE = 25;
+
+    /** Maximum number of pages kept around */
+    private static final int MAX_PAGES = 6;
+
+    private static final int MESSAGE_PAGE_LOADED = 1;
+
+    static final CallLogGroups EMPTY = new CallLogGroups(null, new ArrayList<RecentCallsInfo>(0));
+
+    /** Thread the pages are built on, shared by all the groups */
+    private static Handler sLoader;
+
+    /** Notified when the entries the list asked for are built. */
+    interface OnPageLoadedListener {
+        void onPageLoaded();
+    }
+
+    /** The aggregation that built these groups, or null */
+    private final Object mSource;
+
+    /** Entries of a partial call log, or null */
+    private final List<RecentCallsInfo> mItems;
+
+    /** Only used on the loader thread */
+    private final Cursor mCursor;
+    private final int mCount;
+    /** Cursor position of the call shown for each group */
+    private final int[] mRows;
+    /** Cursor position of the call the name of each group comes from */
+    private final int[] mNameRows;
+    private final int[] mCounts;
+    private final int[] mPersonIds;
+
+    /** Built pages by page index, least recently used first */
+    private final LinkedHashMap<Integer, RecentCallsInfo[]> mPages;
+    /** Pages being built on the loader thread */
+    private boolean[] mRequested;
+    /** Pages the list asked for, and is to be notified of */
+    private boolean[] mWanted;
+
+    /**
+     * Text cached by the adapter on the entries of the dropped pages, by
+     * group. Null until a page is dropped.
+     */
+    private CachedText[] mCachedTexts;
+
+    private Handler mHandler;
+    private OnPageLoadedListener mListener;
+    private volatile boolean mClosed;
+
+    /** The state of an entry that is cached by the adapter */
+    private static final class CachedText {
+        String formattedNumber;
+        String displayNumber;
+        String countText;
+        CharSequence dateText;
+        String dateFormat;
+        long dateMinute;
+        boolean updateQueued;
+
+        void save(RecentCallsInfo info) {
+            formattedNumber = info.formattedNumber;
+            displayNumber = info.displayNumber;
+            countText = info.countText;
+            dateText = info.dateText;
+            dateFormat = info.dateFormat;
+            dateMinute = info.dateMinute;
+            updateQueued = info.updateQueued;
+        }
+
+        void restore(RecentCallsInfo info) {
+            info.formattedNumber = formattedNumber;
+            info.displayNumber = displayNumber;
+            info.countText = countText;
+            info.dateText = dateText;
+            info.dateFormat = dateFormat;
+            info.dateMinute = dateMinute;
+            info.updateQueued = updateQueued;
+        }
+    }
+
+    /**
+     * Creates groups backed by entries that were built already.
+     *
+     * @param source the aggregation that built them, or null
+     */
+    CallLogGroups(Object source, List<RecentCallsInfo> items) {
+        mSource = source;
+        mItems = items;
+        mCursor = null;
+        mCount = items.size();
+        mRows = null;
+        mNameRows = null;
+        mCounts = null;
+        mPersonIds = null;
+        mPages = null;
+    }
+
+    /**
+     * Creates groups backed by a call log cursor, which is closed by
+     * {@link #close()}. The arrays hold {@code count} groups.
+     *
+     * @param source the aggregation that built them, or null
+     */
+    CallLogGroups(Object source, Cursor cursor, int count, int[] rows, int[] nameRows,
+            int[] counts, int[] personIds) {
+        mSource = source;
+        mItems = null;
+        mCursor = cursor;
+        mCount = count;
+        mRows = rows;
+        mNameRows = nameRows;
+        mCounts = counts;
+        mPersonIds = personIds;
+        mPages = new LinkedHashMap<Integer, RecentCallsInfo[]>(MAX_PAGES, 0.75f, true);
+    }
+
+    private static synchronized Handler getLoader() {
+        if (sLoader == null) {
+            HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+
+            thread.start();
+            sLoader = new Handler(thread.getLooper());
+        }
+        return sLoader;
+    }
+
+    /**
+     * Sets the listener notified when the entries that {@link #get(int)}
+     * couldn't return yet are built. Must be called before {@link #get(int)}.
+     */
+    void setOnPageLoadedListener(OnPageLoadedListener listener) {
+        if (mPages == null) {
+            // Everything is built already
+            return;
+        }
+        mListener = listener;
+        if (mHandler == null) {
+            final int pageCount = (mCount + PAGE_SIZE - 1) / PAGE_SIZE;
+
+            mRequested = new boolean[pageCount];
+            mWanted = new boolean[pageCount];
+            mHandler = new Handler() {
+                @Override
+                public void handleMessage(Message msg) {
+                    if (msg.what == MESSAGE_PAGE_LOADED) {
+                        onPageLoaded(msg.arg1, (RecentCallsInfo[]) msg.obj);
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     * Takes over the entries of partial groups built earlier by the same
+     * aggregation, with the text cached on them, so that the rows shown don't
+     * go blank while their page is built again.
+     *
+     * @param position the first row shown
+     */
+    void takeOver(CallLogGroups previous, int position) {
+        if (mSource == null || previous.mSource != mSource || previous.mItems == null) {
+            return;
+        }
+        if (mPages != null) {
+            final int pageIndex = position / PAGE_SIZE;
+
+            takeOverPage(previous, 0);
+            for (int i = Math.max(pageIndex - 1, 1); i <= pageIndex + 1; i++) {
+                takeOverPage(previous, i);
+            }
+        }
+
+        final int count = Math.min(mCount, previous.mCount);
+
+        for (int i = 0; i < count; i++) {
+            RecentCallsInfo old = previous.mItems.get(i);
+
+            if (old.row != getRow(i) || (mPages != null && mPages.containsKey(i / PAGE_SIZE))) {
+                continue;
+            }
+            CachedText text = new CachedText();
+
+            text.save(old);
+            if (old.count != getCallCount(i)) {
+                text.countText = null;
+            }
+            if (old.nameRow != getNameRow(i)) {
+                // The name changed, check it against the contact again
+                text.updateQueued = false;
+            }
+            if (mItems != null) {
+                text.restore(mItems.get(i));
+            } else {
+                if (mCachedTexts == null) {
+                    mCachedTexts = new CachedText[mCount];
+                }
+                mCachedTexts[i] = text;
+            }
+        }
+    }
+
+    /**
+     * Uses the partial entries as a page, if only their call counts changed.
+     */
+    private void takeOverPage(CallLogGroups previous, int pageIndex) {
+        final int start = pageIndex * PAGE_SIZE;
+        final int end = Math.min(start + PAGE_SIZE, mCount);
+
+        if (start >= end || end > previous.mCount) {
+            return;
+        }
+        for (int i = start; i < end; i++) {
+            RecentCallsInfo old = previous.mItems.get(i);
+
+            if (old.row != mRows[i] || old.nameRow != mNameRows[i]
+                    || old.personId != mPersonIds[i]) {
+                return;
+            }
+        }
+
+        RecentCallsInfo[] page = new RecentCallsInfo[end - start];
+
+        for (int i = start; i < end; i++) {
+            RecentCallsInfo info = previous.mItems.get(i);
+
+            if (info.count != mCounts[i]) {
+                info.count = mCounts[i];
+                info.countText = null;
+            }
+            page[i - start] = info;
+        }
+        mPages.put(pageIndex, page);
+    }
+
+    private int getRow(int position) {
+        return mItems != null ? mItems.get(position).row : mRows[position];
+    }
+
+    private int getNameRow(int position) {
+        return mItems != null ? mItems.get(position).nameRow : mNameRows[position];
+    }
+
+    private int getCallCount(int position) {
+        return mItems != null ? mItems.get(position).count : mCounts[position];
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the entry at the position, or null if it is still being built,
+     * in which case the listener is notified once it is.
+     */
+    public RecentCallsInfo get(int position) {
+        if (mItems != null) {
+            return mItems.get(position);
+        }
+        if (position < 0 || position >= mCount) {
+            throw new IndexOutOfBoundsException("Invalid position " + position);
+        }
+
+        final int pageIndex = position / PAGE_SIZE;
+        RecentCallsInfo[] page = mPages.get(pageIndex);
+
+        if (page == null) {
+            requestPage(pageIndex, true);
+            return null;
+        }
+        // Build the next pages before the list scrolls to them
+        requestPage(pageIndex + 1, false);
+        requestPage(pageIndex - 1, false);
+        return page[position - pageIndex * PAGE_SIZE];
+    }
+
+    private void requestPage(final int pageIndex, boolean wanted) {
+        if (pageIndex < 0 || pageIndex >= mRequested.length || mPages.containsKey(pageIndex)) {
+            return;
+        }
+        if (wanted) {
+            mWanted[pageIndex] = true;
+        }
+        if (mRequested[pageIndex]) {
+            return;
+        }
+        mRequested[pageIndex] = true;
+        getLoader().post(new Runnable() {
+            public void run() {
+                if (mClosed) {
+                    return;
+                }
+                RecentCallsInfo[] page;
+
+                try {
+                    page = loadPage(pageIndex);
+                } catch (SQLiteException e) {
+                    Log.w(TAG, "Exception while reading the call log", e);
+                    return;
+                }
+                mHandler.obtainMessage(MESSAGE_PAGE_LOADED, pageIndex, 0, page).sendToTarget();
+            }
+        });
+    }
+
+    private void onPageLoaded(int pageIndex, RecentCallsInfo[] page) {
+        if (mClosed) {
+            return;
+        }
+        mRequested[pageIndex] = false;
+        restoreCachedText(pageIndex * PAGE_SIZE, page);
+        mPages.put(pageIndex, page);
+        trimPages();
+        if (mWanted[pageIndex]) {
+            mWanted[pageIndex] = false;
+            if (mListener != null) {
+                mListener.onPageLoaded();
+            }
+        }
+    }
+
+    /**
+     * Drops the least recently used pages over {@link #MAX_PAGES}, keeping
+     * the first page, which holds the latest calls.
+     */
+    private void trimPages() {
+        Iterator<Map.Entry<Integer, RecentCallsInfo[]>> it = mPages.entrySet().iterator();
+
+        while (mPages.size() > MAX_PAGES && it.hasNext()) {
+            Map.Entry<Integer, RecentCallsInfo[]> entry = it.next();
+            int pageIndex = entry.getKey();
+
+            if (pageIndex != 0) {
+                saveCachedText(pageIndex, entry.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Builds the entries of a page from the cursor. Called on the loader
+     * thread.
+     */
+    private RecentCallsInfo[] loadPage(int pageIndex) {
+        final int start = pageIndex * PAGE_SIZE;
+        final int end = Math.min(start + PAGE_SIZE, mCount);
+        RecentCallsInfo[] page = new RecentCallsInfo[end - start];
+
+        for (int i = start; i < end; i++) {
+            RecentCallsInfo info = new RecentCallsInfo();
+
+            mCursor.moveToPosition(mRows[i]);
+            info.number = mCursor.getString(RecentCallsListActivity.NUMBER_COLUMN_INDEX);
+            info.type = mCursor.getInt(RecentCallsListActivity.CALL_TYPE_COLUMN_INDEX);
+            info.date = mCursor.getLong(RecentCallsListActivity.DATE_COLUMN_INDEX);
+            info.duration = mCursor.getInt(RecentCallsListActivity.DURATION_COLUMN_INDEX);
+            if (mNameRows[i] != mRows[i]) {
+                mCursor.moveToPosition(mNameRows[i]);
+            }
+            info.name = mCursor.getString(RecentCallsListActivity.CALLER_NAME_COLUMN_INDEX);
+            info.number_type = mCursor.getInt(
+                    RecentCallsListActivity.CALLER_NUMBERTYPE_COLUMN_INDEX);
+            info.number_label = mCursor.getString(
+                    RecentCallsListActivity.CALLER_NUMBERLABEL_COLUMN_INDEX);
+            info.count = mCounts[i];
+            info.personId = mPersonIds[i];
+            info.row = mRows[i];
+            info.nameRow = mNameRows[i];
+            page[i - start] = info;
+        }
+        return page;
+    }
+
+    private void saveCachedText(int pageIndex, RecentCallsInfo[] page) {
+        final int start = pageIndex * PAGE_SIZE;
+
+        if (mCachedTexts == null) {
+            mCachedTexts = new CachedText[mCount];
+        }
+        for (int i = 0; i < page.length; i++) {
+            CachedText text = mCachedTexts[start + i];
+
+            if (text == null) {
+                text = new CachedText();
+                mCachedTexts[start + i] = text;
+            }
+            text.save(page[i]);
+        }
+    }
+
+    private void restoreCachedText(int start, RecentCallsInfo[] page) {
+        if (mCachedTexts == null) {
+            return;
+        }
+        for (int i = 0; i < page.length; i++) {
+            CachedText text = mCachedTexts[start + i];
+
+            if (text != null) {
+                text.restore(page[i]);
+            }
+        }
+    }
+
+    public void close() {
+        mClosed = true;
+        mListener = null;
+        if (mHandler != null) {
+            mHandler.removeMessages(MESSAGE_PAGE_LOADED);
+        }
+        if (mCursor != null) {
+            // Closed after the page being built, if any
+            getLoader().post(new Runnable() {
+                public void run() {
+                    mCursor.close();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,433 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.provider.CallLog.Calls;
+import android.text.format.Time;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Process wide running statistics of the call log: totals for each call type,
+ * broken down by day and by caller. The call log is read once; after that
+ * only the calls added since the last read are queried when the call log
+ * changes, and the oldest calls trimmed by the provider are subtracted. The
+ * statistics are rebuilt from scratch only when other calls were deleted.
+ */
+final class CallLogStats {
+    private static final String TAG = "CallLogStats";
+
+    private static final String[] PROJECTION = new String[] {
+        Calls._ID, Calls.TYPE, Calls.DURATION, Calls.DATE, Calls.NUMBER
+    };
+
+    private static final int ID_COLUMN_INDEX = 0;
+    private static final int TYPE_COLUMN_INDEX = 1;
+    private static final int DURATION_COLUMN_INDEX = 2;
+    private static final int DATE_COLUMN_INDEX = 3;
+    private static final int NUMBER_COLUMN_INDEX = 4;
+
+    private static final String[] ID_PROJECTION = new String[] { Calls._ID };
+
+    private static final int MESSAGE_REFRESH = 1;
+
+    /** Totals of a set of calls. Durations are in seconds. */
+    static final class Totals {
+        public int incomingCount;
+        public int outgoingCount;
+        public int missedCount;
+        public long incomingDuration;
+        public long outgoingDuration;
+
+        Totals() {
+        }
+
+        Totals(Totals other) {
+            incomingCount = other.incomingCount;
+            outgoingCount = other.outgoingCount;
+            missedCount = other.missedCount;
+            incomingDuration = other.incomingDuration;
+            outgoingDuration = other.outgoingDuration;
+        }
+
+        void add(int type, int duration) {
+            switch (type) {
+            case Calls.INCOMING_TYPE:
+                incomingCount++;
+                incomingDuration += duration;
+                break;
+
+            case Calls.OUTGOING_TYPE:
+                outgoingCount++;
+                outgoingDuration += duration;
+                break;
+
+            case Calls.MISSED_TYPE:
+                missedCount++;
+                break;
+            }
+        }
+
+        void remove(int type, int duration) {
+            switch (type) {
+            case Calls.INCOMING_TYPE:
+                incomingCount--;
+                incomingDuration -= duration;
+                break;
+
+            case Calls.OUTGOING_TYPE:
+                outgoingCount--;
+                outgoingDuration -= duration;
+                break;
+
+            case Calls.MISSED_TYPE:
+                missedCount--;
+                break;
+            }
+        }
+
+        boolean isEmpty() {
+            return incomingCount == 0 && outgoingCount == 0 && missedCount == 0;
+        }
+    }
+
+    /** A copy of the statistics, owned by the thread it was sent to. */
+    static final class Summary {
+        /** Totals of the whole call log */
+        public final Totals totals;
+        private final HashMap<Integer, Totals> mByDay;
+        private final HashMap<String, Totals> mByCaller;
+
+        private Summary(Stats stats) {
+            totals = new Totals(stats.totals);
+            mByDay = copy(stats.byDay);
+            mByCaller = copy(stats.byCaller);
+        }
+
+        /**
+         * Returns the totals of the calls made on the day containing the
+         * given time, in the local time zone.
+         */
+        public Totals getTotalsForDay(long millis) {
+            Totals totals = mByDay.get(getJulianDay(millis));
+
+            return totals != null ? totals : new Totals();
+        }
+
+        /**
+         * Returns the totals of the calls from or to the given number, as
+         * grouped by the call log list.
+         */
+        public Totals getTotalsForNumber(String number) {
+            String key = CallLogGrouper.getSuffixKey(number);
+            Totals totals = key != null ? mByCaller.get(key) : null;
+
+            return totals != null ? totals : new Totals();
+        }
+
+        private static <K> HashMap<K, Totals> copy(HashMap<K, Totals> map) {
+            HashMap<K, Totals> copy = new HashMap<K, Totals>(map.size());
+
+            for (Map.Entry<K, Totals> entry : map.entrySet()) {
+                copy.put(entry.getKey(), new Totals(entry.getValue()));
+            }
+            return copy;
+        }
+    }
+
+    /** Receives the statistics on the thread that requested them. */
+    interface OnTotalsListener {
+        void onTotals(Summary summary);
+    }
+
+    /**
+     * Statistics of the calls read so far. The calls counted are kept, oldest
+     * first, so that the ones trimmed from the call log can be subtracted.
+     */
+    private static final class Stats {
+        long maxId = -1;
+        final Totals totals = new Totals();
+        /** Totals by Julian day, in the local time zone */
+        final HashMap<Integer, Totals> byDay = new HashMap<Integer, Totals>();
+        /** Totals by {@link CallLogGrouper#getSuffixKey(String)} of the number */
+        final HashMap<String, Totals> byCaller = new HashMap<String, Totals>();
+        long[] ids = new long[64];
+        int[] types = new int[64];
+        int[] durations = new int[64];
+        int[] days = new int[64];
+        /** Null for the calls whose number has no key */
+        String[] callerKeys = new String[64];
+        /** The calls counted are at [start, end) */
+        int start;
+        int end;
+
+        int getRowCount() {
+            return end - start;
+        }
+
+        void addCall(Cursor cursor) {
+            long id = cursor.getLong(ID_COLUMN_INDEX);
+            int type = cursor.getInt(TYPE_COLUMN_INDEX);
+            int duration = cursor.getInt(DURATION_COLUMN_INDEX);
+            int day = getJulianDay(cursor.getLong(DATE_COLUMN_INDEX));
+            String callerKey = CallLogGrouper.getSuffixKey(cursor.getString(NUMBER_COLUMN_INDEX));
+
+            if (end == ids.length) {
+                makeRoom();
+            }
+            ids[end] = id;
+            types[end] = type;
+            durations[end] = duration;
+            days[end] = day;
+            callerKeys[end] = callerKey;
+            end++;
+
+            totals.add(type, duration);
+            add(byDay, day, type, duration);
+            if (callerKey != null) {
+                add(byCaller, callerKey, type, duration);
+            }
+            if (id > maxId) {
+                maxId = id;
+            }
+        }
+
+        /**
+         * Subtracts the calls with an id below {@code minId}.
+         */
+        void removeCallsBefore(long minId) {
+            while (start < end && ids[start] < minId) {
+                final int type = types[start];
+                final int duration = durations[start];
+
+                totals.remove(type, duration);
+                remove(byDay, days[start], type, duration);
+                if (callerKeys[start] != null) {
+                    remove(byCaller, callerKeys[start], type, duration);
+                    callerKeys[start] = null;
+                }
+                start++;
+            }
+        }
+
+        private static <K> void add(HashMap<K, Totals> map, K key, int type, int duration) {
+            Totals keyTotals = map.get(key);
+
+            if (keyTotals == null) {
+                keyTotals = new Totals();
+                map.put(key, keyTotals);
+            }
+            keyTotals.add(type, duration);
+        }
+
+        private static <K> void remove(HashMap<K, Totals> map, K key, int type, int duration) {
+            Totals keyTotals = map.get(key);
+
+            if (keyTotals != null) {
+                keyTotals.remove(type, duration);
+                if (keyTotals.isEmpty()) {
+                    map.remove(key);
+                }
+            }
+        }
+
+        private void makeRoom() {
+            final int count = end - start;
+            final int capacity = count * 2 > ids.length ? ids.length * 2 : ids.length;
+            long[] newIds = new long[capacity];
+            int[] newTypes = new int[capacity];
+            int[] newDurations = new int[capacity];
+            int[] newDays = new int[capacity];
+            String[] newCallerKeys = new String[capacity];
+
+            System.arraycopy(ids, start, newIds, 0, count);
+            System.arraycopy(types, start, newTypes, 0, count);
+            System.arraycopy(durations, start, newDurations, 0, count);
+            System.arraycopy(days, start, newDays, 0, count);
+            System.arraycopy(callerKeys, start, newCallerKeys, 0, count);
+            ids = newIds;
+            types = newTypes;
+            durations = newDurations;
+            days = newDays;
+            callerKeys = newCallerKeys;
+            start = 0;
+            end = count;
+        }
+    }
+
+    private static CallLogStats sInstance;
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler;
+
+    /**
+     * Only used on the statistics thread. Null until the call log was read
+     * once.
+     */
+    private Stats mStats;
+
+    private final ContentObserver mCallLogObserver;
+
+    public static synchronized CallLogStats getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CallLogStats(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private CallLogStats(Context context) {
+        mResolver = context.getContentResolver();
+
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+
+        thread.start();
+        mHandler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                case MESSAGE_REFRESH:
+                    refresh();
+                    break;
+                }
+            }
+        };
+
+        mCallLogObserver = new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                // Coalesce bursts of notifications into a single refresh
+                mHandler.removeMessages(MESSAGE_REFRESH);
+                mHandler.sendEmptyMessage(MESSAGE_REFRESH);
+            }
+        };
+        mResolver.registerContentObserver(Calls.CONTENT_URI, true, mCallLogObserver);
+        mHandler.sendEmptyMessage(MESSAGE_REFRESH);
+    }
+
+    /**
+     * Sends a copy of the statistics to the listener, on the calling thread,
+     * which must have a looper. It is sent once the call log has been read.
+     */
+    public void requestTotals(final OnTotalsListener listener) {
+        final Handler callerHandler = new Handler();
+
+        mHandler.post(new Runnable() {
+            public void run() {
+                if (mStats == null) {
+                    // The first refresh was pushed back by a change
+                    refresh();
+                }
+                final Summary summary = new Summary(mStats);
+
+                callerHandler.post(new Runnable() {
+                    public void run() {
+                        listener.onTotals(summary);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Adds the calls logged since the last refresh and subtracts the ones
+     * trimmed from the start of the call log, or reads the whole call log
+     * again if other calls were deleted. Runs on the statistics thread.
+     */
+    private void refresh() {
+        final Stats stats = mStats;
+
+        if (stats == null || !removeTrimmedCalls(stats)) {
+            // First read, or calls were deleted: start over. The statistics
+            // are set even if the call log can't be read.
+            Stats rebuilt = new Stats();
+
+            readCalls(rebuilt);
+            mStats = rebuilt;
+        } else {
+            readCalls(stats);
+        }
+    }
+
+    /**
+     * Subtracts the calls deleted from the start of the call log, the way the
+     * provider trims it. Returns false if other calls were deleted, or if the
+     * call log can't be read.
+     */
+    private boolean removeTrimmedCalls(Stats stats) {
+        Cursor cursor = null;
+
+        try {
+            cursor = mResolver.query(Calls.CONTENT_URI, ID_PROJECTION,
+                    Calls._ID + "<=" + stats.maxId, null, Calls._ID + " ASC");
+            if (cursor == null) {
+                return false;
+            }
+            long minId = cursor.moveToFirst() ? cursor.getLong(0) : Long.MAX_VALUE;
+
+            stats.removeCallsBefore(minId);
+            return cursor.getCount() == stats.getRowCount();
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Exception while reading the call log", e);
+            return false;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Adds the calls with an id above {@link Stats#maxId} to the statistics.
+     */
+    private void readCalls(Stats stats) {
+        Cursor cursor = null;
+
+        try {
+            cursor = mResolver.query(Calls.CONTENT_URI, PROJECTION,
+                    Calls._ID + ">" + stats.maxId, null, Calls._ID + " ASC");
+            if (cursor != null) {
+                while (cursor.moveToNext()) {
+                    stats.addCall(cursor);
+                }
+            }
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Exception while reading the call log", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    private static int getJulianDay(long millis) {
+        long gmtoff = TimeZone.getDefault().getOffset(millis) / 1000;
+
+        return Time.getJulianDay(millis, gmtoff);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabaseCorruptException;
+import android.database.sqlite.SQLiteDiskIOException;
+import android.database.sqlite.SQLiteFullException;
+import android.provider.CallLog.Calls;
+import android.util.Log;
+
+import com.android.contacts.RecentCallsListActivity.ContactInfo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Collects the caller names to cache in the call log and writes them in as
+ * few updates as possible. Call log rows are matched on their exact number,
+ * and all the numbers getting the same name, type and label are updated
+ * together.
+ */
+final class CallLogWriteBack {
+    private static final String TAG = "CallLogWriteBack";
+
+    /** Maximum number of numbers matched by a single update */
+    private static final int NUMBERS_PER_UPDATE = 100;
+
+    /** Pending values by number. Guarded by this. */
+    private HashMap<String, ContactInfo> mPending = new HashMap<String, ContactInfo>();
+
+    /**
+     * Queues the cached name, number type and label of a number. A later
+     * call for the same number replaces the pending values.
+     */
+    public synchronized void add(String number, ContactInfo info) {
+        mPending.put(number, info);
+    }
+
+    public synchronized boolean hasPending() {
+        return !mPending.isEmpty();
+    }
+
+    /**
+     * Writes the pending values to the call log. Must not be called from the
+     * UI thread.
+     */
+    public void flush(ContentResolver resolver) {
+        HashMap<String, ContactInfo> pending;
+
+        synchronized (this) {
+            if (mPending.isEmpty()) {
+                return;
+            }
+            pending = mPending;
+            mPending = new HashMap<String, ContactInfo>();
+        }
+
+        // Group the numbers by the values they get
+        HashMap<String, ArrayList<String>> numbersByValues =
+                new HashMap<String, ArrayList<String>>();
+        HashMap<String, ContactInfo> valuesByKey = new HashMap<String, ContactInfo>();
+
+        for (Map.Entry<String, ContactInfo> entry : pending.entrySet()) {
+            ContactInfo info = entry.getValue();
+            String key = info.name + '\u0000' + info.type + '\u0000' + info.label;
+            ArrayList<String> numbers = numbersByValues.get(key);
+
+            if (numbers == null) {
+                numbers = new ArrayList<String>();
+                numbersByValues.put(key, numbers);
+                valuesByKey.put(key, info);
+            }
+            numbers.add(entry.getKey());
+        }
+
+        StringBuilder where = new StringBuilder();
+
+        for (Map.Entry<String, ArrayList<String>> entry : numbersByValues.entrySet()) {
+            ContactInfo info = valuesByKey.get(entry.getKey());
+            ContentValues values = new ContentValues(3);
+
+            values.put(Calls.CACHED_NAME, info.name);
+            values.put(Calls.CACHED_NUMBER_TYPE, info.type);
+            values.put(Calls.CACHED_NUMBER_LABEL, info.label);
+
+            ArrayList<String> numbers = entry.getValue();
+
+            for (int start = 0; start < numbers.size(); start += NUMBERS_PER_UPDATE) {
+                int end = Math.min(start + NUMBERS_PER_UPDATE, numbers.size());
+
+                where.setLength(0);
+                where.append(Calls.NUMBER).append(" IN (");
+                for (int i = start; i < end; i++) {
+                    where.append(i > start ? ",?" : "?");
+                }
+                where.append(')');
+
+                String[] args = numbers.subList(start, end).toArray(new String[end - start]);
+
+                try {
+                    resolver.update(Calls.CONTENT_URI, values, where.toString(), args);
+                } catch (SQLiteDiskIOException e) {
+                    Log.w(TAG, "Exception while updating call info", e);
+                } catch (SQLiteFullException e) {
+                    Log.w(TAG, "Exception while updating call info", e);
+                } catch (SQLiteDatabaseCorruptException e) {
+                    Log.w(TAG, "Exception while updating call info", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.provider.Contacts.Phones;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.contacts.RecentCallsListActivity.ContactInfo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Resolves many phone numbers to contacts with a few bulk queries, instead of
+ * one {@link Phones#CONTENT_FILTER_URL} query per number. Numbers are matched
+ * against the phones table by their caller id minimum match key, the same key
+ * the filter URL uses, and every candidate row is then confirmed with
+ * {@link PhoneNumberUtils#compare(String, String)}.
+ */
+final class CallerIdResolver {
+    private static final String TAG = "CallerIdResolver";
+
+    /** Maximum number of keys looked up by a single query */
+    private static final int KEYS_PER_QUERY = 64;
+
+    private CallerIdResolver() {
+    }
+
+    /**
+     * Looks up the contacts for the given numbers.
+     *
+     * @return a map from each number that belongs to a contact to its
+     * {@link ContactInfo}. Numbers without a contact are left out.
+     */
+    public static HashMap<String, ContactInfo> resolve(ContentResolver resolver,
+            Collection<String> numbers) {
+        HashMap<String, ContactInfo> result = new HashMap<String, ContactInfo>();
+
+        // Group the numbers by the key they are looked up with
+        HashMap<String, ArrayList<String>> numbersByKey = new HashMap<String, ArrayList<String>>();
+
+        for (String number : numbers) {
+            if (TextUtils.isEmpty(number)) {
+                continue;
+            }
+            String key = PhoneNumberUtils.toCallerIDMinMatch(number);
+
+            if (TextUtils.isEmpty(key)) {
+                continue;
+            }
+            ArrayList<String> list = numbersByKey.get(key);
+
+            if (list == null) {
+                list = new ArrayList<String>(1);
+                numbersByKey.put(key, list);
+            }
+            list.add(number);
+        }
+
+        Iterator<String> keys = numbersByKey.keySet().iterator();
+        StringBuilder where = new StringBuilder();
+        ArrayList<String> args = new ArrayList<String>(KEYS_PER_QUERY);
+
+        while (keys.hasNext()) {
+            where.setLength(0);
+            args.clear();
+            while (keys.hasNext() && args.size() < KEYS_PER_QUERY) {
+                if (where.length() > 0) {
+                    where.append(" OR ");
+                }
+                where.append(Phones.NUMBER_KEY).append(" GLOB ?");
+                args.add(keys.next() + "*");
+            }
+            queryChunk(resolver, where.toString(), args.toArray(new String[args.size()]),
+                    numbersByKey, result);
+        }
+        return result;
+    }
+
+    private static void queryChunk(ContentResolver resolver, String where, String[] args,
+            HashMap<String, ArrayList<String>> numbersByKey, HashMap<String, ContactInfo> result) {
+        Cursor cursor = null;
+
+        try {
+            cursor = resolver.query(Phones.CONTENT_URI, RecentCallsListActivity.PHONES_PROJECTION,
+                    where, args, null);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Exception while resolving caller ids", e);
+        }
+        if (cursor == null) {
+            return;
+        }
+
+        try {
+            while (cursor.moveToNext()) {
+                String matched = cursor.getString(
+                        RecentCallsListActivity.MATCHED_NUMBER_COLUMN_INDEX);
+
+                if (TextUtils.isEmpty(matched)) {
+                    continue;
+                }
+                ArrayList<String> candidates = numbersByKey.get(
+                        PhoneNumberUtils.toCallerIDMinMatch(matched));
+
+                if (candidates == null) {
+                    continue;
+                }
+                for (String number : candidates) {
+                    if (result.containsKey(number)
+                            || !PhoneNumberUtils.compare(number, matched)) {
+                        continue;
+                    }
+                    ContactInfo info = new ContactInfo();
+
+                    info.personId = cursor.getLong(
+                            RecentCallsListActivity.PERSON_ID_COLUMN_INDEX);
+                    info.name = cursor.getString(RecentCallsListActivity.NAME_COLUMN_INDEX);
+                    info.type = cursor.getInt(RecentCallsListActivity.PHONE_TYPE_COLUMN_INDEX);
+                    info.label = cursor.getString(RecentCallsListActivity.LABEL_COLUMN_INDEX);
+                    // Geesun: keep the call log number, as the per number lookup does
+                    info.number = number;
+                    info.formattedNumber = null;
+                    result.put(number, info);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import com.android.contacts.RecentCallsListActivity.CallerInfoQuery;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Pending caller id lookups of the call log. Requests for a number that is
+ * already queued are merged into the queued request, and the requests for
+ * the rows currently on screen are handed out first. When the queue is full
+ * the request farthest from the screen is dropped and returned to the caller,
+ * which is expected to queue it again when its row is bound next.
+ */
+final class CallerInfoQueue {
+    /** Maximum number of pending lookups */
+    private static final int MAX_PENDING = 64;
+
+    /** Pending lookups by number. Guarded by this. */
+    private final LinkedHashMap<String, CallerInfoQuery> mPending =
+            new LinkedHashMap<String, CallerInfoQuery>();
+
+    private int mFirstVisible;
+    private int mLastVisible;
+    private boolean mStopped;
+    private boolean mWakeUp;
+
+    /**
+     * Queues a lookup, or updates the pending lookup for the same number.
+     *
+     * @return the lookup dropped to make room, which may be {@code ciq}
+     * itself, or null
+     */
+    public synchronized CallerInfoQuery add(CallerInfoQuery ciq) {
+        CallerInfoQuery pending = mPending.get(ciq.number);
+
+        if (pending != null) {
+            pending.position = ciq.position;
+            pending.name = ciq.name;
+            pending.numberType = ciq.numberType;
+            pending.numberLabel = ciq.numberLabel;
+            return null;
+        }
+
+        CallerInfoQuery dropped = null;
+
+        if (mPending.size() >= MAX_PENDING) {
+            dropped = find(false);
+            if (distance(dropped.position) <= distance(ciq.position)) {
+                return ciq;
+            }
+            mPending.remove(dropped.number);
+        }
+        mPending.put(ciq.number, ciq);
+        notifyAll();
+        return dropped;
+    }
+
+    /**
+     * Sets the range of positions on screen, which are looked up first.
+     */
+    public synchronized void setVisibleRange(int first, int last) {
+        mFirstVisible = first;
+        mLastVisible = last;
+    }
+
+    /**
+     * Waits for a lookup and removes it from the queue.
+     *
+     * @return the next lookup, or null if the queue was stopped or
+     * {@link #wakeUp()} was called
+     */
+    public synchronized CallerInfoQuery take() throws InterruptedException {
+        while (!mStopped && !mWakeUp && mPending.isEmpty()) {
+            wait();
+        }
+        if (mStopped || mWakeUp) {
+            mWakeUp = false;
+            return null;
+        }
+        CallerInfoQuery next = find(true);
+
+        mPending.remove(next.number);
+        return next;
+    }
+
+    /**
+     * Makes a thread waiting in {@link #take()} return null once, so that it
+     * can do other work while there is nothing to look up.
+     */
+    public synchronized void wakeUp() {
+        mWakeUp = true;
+        notifyAll();
+    }
+
+    public synchronized boolean isEmpty() {
+        return mPending.isEmpty();
+    }
+
+    /**
+     * Allows {@link #take()} to return lookups again after {@link #stop()}.
+     */
+    public synchronized void start() {
+        mStopped = false;
+    }
+
+    /**
+     * Wakes up and stops any thread waiting in {@link #take()}. The pending
+     * lookups are kept.
+     */
+    public synchronized void stop() {
+        mStopped = true;
+        notifyAll();
+    }
+
+    /**
+     * Returns the pending lookup closest to the screen, or the farthest from
+     * it. The queue must not be empty.
+     */
+    private CallerInfoQuery find(boolean closest) {
+        Iterator<CallerInfoQuery> iterator = mPending.values().iterator();
+        CallerInfoQuery found = iterator.next();
+        int foundDistance = distance(found.position);
+
+        while (iterator.hasNext()) {
+            CallerInfoQuery ciq = iterator.next();
+            int distance = distance(ciq.position);
+
+            if (closest ? distance < foundDistance : distance > foundDistance) {
+                found = ciq;
+                foundDistance = distance;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Returns how far a position is from the screen. Rows on screen come
+     * first from the top, then the rows below, then the rows above.
+     */
+    private int distance(int position) {
+        if (position < mFirstVisible) {
+            return (mFirstVisible - position) + (mLastVisible - mFirstVisible);
+        }
+        return position - mFirstVisible;
+    }
+}
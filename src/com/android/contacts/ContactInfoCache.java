@@ -0,0 +1,527 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Process;
+import android.provider.Contacts.People;
+import android.provider.Contacts.Phones;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.contacts.RecentCallsListActivity.ContactInfo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process wide cache of the contacts matching call log numbers, persisted in a
+ * small database so that it survives across visits to the call log and across
+ * process restarts. The cache keeps the most recently used entries only. When
+ * the contacts change, the cached entries are checked against the phones table
+ * again and dropped or updated.
+ * <p>
+ * The database is read and written on the calling thread, so everything but
+ * {@link #snapshot()} must be called off the UI thread. The entries in memory
+ * have their own lock, which is never held while the database is used, so
+ * that {@link #snapshot()} doesn't wait for it.
+ */
+final class ContactInfoCache {
+    private static final String TAG = "ContactInfoCache";
+
+    private static final String DATABASE_NAME = "callerid_cache.db";
+    private static final int DATABASE_VERSION = 1;
+    private static final String TABLE = "callerid";
+
+    private static final String NUMBER = "number";
+    private static final String PERSON_ID = "person_id";
+    private static final String NAME = "name";
+    private static final String TYPE = "type";
+    private static final String LABEL = "label";
+    private static final String LAST_USED = "last_used";
+
+    private static final String[] PROJECTION = new String[] {
+        NUMBER, PERSON_ID, NAME, TYPE, LABEL
+    };
+
+    private static final int NUMBER_COLUMN_INDEX = 0;
+    private static final int PERSON_ID_COLUMN_INDEX = 1;
+    private static final int NAME_COLUMN_INDEX = 2;
+    private static final int TYPE_COLUMN_INDEX = 3;
+    private static final int LABEL_COLUMN_INDEX = 4;
+
+    /** Maximum number of cached numbers */
+    private static final int MAX_ENTRIES = 500;
+
+    /** Maximum number of person ids checked by a single revalidation query */
+    private static final int IDS_PER_QUERY = 100;
+
+    private static ContactInfoCache sInstance;
+
+    private final ContentResolver mResolver;
+    private final DatabaseHelper mDatabaseHelper;
+
+    /** Serializes the use of the database. Taken before mEntries, if both are. */
+    private final Object mDatabaseLock = new Object();
+
+    /**
+     * Entries in least recently used order. Guarded by itself, as are the
+     * other fields below.
+     */
+    private final LinkedHashMap<String, ContactInfo> mEntries;
+
+    /** Numbers evicted from memory that still have to be deleted from the database */
+    private final ArrayList<String> mEvicted = new ArrayList<String>();
+
+    /** Numbers read since the last write, whose use is saved with the next one */
+    private final HashSet<String> mUsed = new HashSet<String>();
+
+    private boolean mRevalidating;
+    private boolean mRevalidateAgain;
+
+    /** Set once the database was read. Written with mDatabaseLock held. */
+    private volatile boolean mLoaded;
+
+    private static class DatabaseHelper extends SQLiteOpenHelper {
+        DatabaseHelper(Context context) {
+            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE + " ("
+                    + NUMBER + " TEXT PRIMARY KEY,"
+                    + PERSON_ID + " INTEGER,"
+                    + NAME + " TEXT,"
+                    + TYPE + " INTEGER,"
+                    + LABEL + " TEXT,"
+                    + LAST_USED + " INTEGER"
+                    + ");");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+            onCreate(db);
+        }
+    }
+
+    private final ContentObserver mContactsObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            scheduleRevalidation();
+        }
+    };
+
+    public static synchronized ContactInfoCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ContactInfoCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ContactInfoCache(Context context) {
+        mResolver = context.getContentResolver();
+        mDatabaseHelper = new DatabaseHelper(context);
+        mEntries = new LinkedHashMap<String, ContactInfo>(MAX_ENTRIES, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ContactInfo> eldest) {
+                if (size() > MAX_ENTRIES) {
+                    mEvicted.add(eldest.getKey());
+                    return true;
+                }
+                return false;
+            }
+        };
+        mResolver.registerContentObserver(People.CONTENT_URI, true, mContactsObserver);
+
+        // The contacts may have changed while the process wasn't running
+        scheduleRevalidation();
+    }
+
+    /**
+     * Returns a copy of the cached entries, without waiting for them to be
+     * loaded from the database. Safe to call from the UI thread.
+     */
+    public HashMap<String, ContactInfo> snapshot() {
+        synchronized (mEntries) {
+            return new HashMap<String, ContactInfo>(mEntries);
+        }
+    }
+
+    /**
+     * Returns the cached contact for the number, or null. The use is saved
+     * with the next {@link #putAll(Map)}.
+     */
+    public ContactInfo get(String number) {
+        ensureLoaded();
+        synchronized (mEntries) {
+            ContactInfo info = mEntries.get(number);
+
+            if (info != null) {
+                mUsed.add(number);
+            }
+            return info;
+        }
+    }
+
+    public void put(String number, ContactInfo info) {
+        HashMap<String, ContactInfo> map = new HashMap<String, ContactInfo>(1);
+
+        map.put(number, info);
+        putAll(map);
+    }
+
+    public void putAll(Map<String, ContactInfo> contacts) {
+        synchronized (mDatabaseLock) {
+            ensureLoaded();
+
+            ArrayList<String> used;
+            ArrayList<String> evicted;
+
+            synchronized (mEntries) {
+                for (Map.Entry<String, ContactInfo> entry : contacts.entrySet()) {
+                    mEntries.put(entry.getKey(), entry.getValue());
+                    mUsed.remove(entry.getKey());
+                }
+                if (contacts.isEmpty() && mEvicted.isEmpty() && mUsed.isEmpty()) {
+                    return;
+                }
+                used = new ArrayList<String>(mUsed);
+                mUsed.clear();
+                evicted = new ArrayList<String>(mEvicted);
+                mEvicted.clear();
+            }
+
+            SQLiteDatabase db = getWritableDatabase();
+
+            if (db == null) {
+                return;
+            }
+            final long now = System.currentTimeMillis();
+
+            db.beginTransaction();
+            try {
+                ContentValues values = new ContentValues(6);
+
+                for (Map.Entry<String, ContactInfo> entry : contacts.entrySet()) {
+                    ContactInfo info = entry.getValue();
+
+                    values.clear();
+                    values.put(NUMBER, entry.getKey());
+                    values.put(PERSON_ID, info.personId);
+                    values.put(NAME, info.name);
+                    values.put(TYPE, info.type);
+                    values.put(LABEL, info.label);
+                    values.put(LAST_USED, now);
+                    db.replace(TABLE, null, values);
+                }
+                updateUsed(db, used, now);
+                deleteEvicted(db, evicted);
+                db.setTransactionSuccessful();
+            } catch (SQLiteException e) {
+                Log.w(TAG, "Exception while writing the cache", e);
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    private void updateUsed(SQLiteDatabase db, ArrayList<String> used, long now) {
+        if (used.isEmpty()) {
+            return;
+        }
+        ContentValues values = new ContentValues(1);
+
+        values.put(LAST_USED, now);
+        for (String number : used) {
+            db.update(TABLE, values, NUMBER + "=?", new String[] { number });
+        }
+    }
+
+    private void deleteEvicted(SQLiteDatabase db, ArrayList<String> evicted) {
+        final int size = evicted.size();
+
+        for (int i = 0; i < size; i++) {
+            db.delete(TABLE, NUMBER + "=?", new String[] { evicted.get(i) });
+        }
+    }
+
+    private SQLiteDatabase getWritableDatabase() {
+        try {
+            return mDatabaseHelper.getWritableDatabase();
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Unable to open the cache database", e);
+            return null;
+        }
+    }
+
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        synchronized (mDatabaseLock) {
+            if (mLoaded) {
+                return;
+            }
+            load();
+            mLoaded = true;
+        }
+    }
+
+    /**
+     * Reads the entries from the database into memory. Called with
+     * mDatabaseLock held.
+     */
+    private void load() {
+        SQLiteDatabase db = getWritableDatabase();
+
+        if (db == null) {
+            return;
+        }
+        ArrayList<ContactInfo> loaded = new ArrayList<ContactInfo>();
+        Cursor cursor = null;
+
+        try {
+            // Oldest first, so the most recently used entries end up last
+            cursor = db.query(TABLE, PROJECTION, null, null, null, null,
+                    LAST_USED + " ASC");
+            while (cursor.moveToNext()) {
+                ContactInfo info = new ContactInfo();
+
+                info.personId = cursor.getLong(PERSON_ID_COLUMN_INDEX);
+                info.name = cursor.getString(NAME_COLUMN_INDEX);
+                info.type = cursor.getInt(TYPE_COLUMN_INDEX);
+                info.label = cursor.getString(LABEL_COLUMN_INDEX);
+                info.number = cursor.getString(NUMBER_COLUMN_INDEX);
+                loaded.add(info);
+            }
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Exception while loading the cache", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        ArrayList<String> evicted;
+
+        synchronized (mEntries) {
+            for (ContactInfo info : loaded) {
+                mEntries.put(info.number, info);
+            }
+            evicted = new ArrayList<String>(mEvicted);
+            mEvicted.clear();
+        }
+        try {
+            deleteEvicted(db, evicted);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Exception while trimming the cache", e);
+        }
+    }
+
+    private void scheduleRevalidation() {
+        synchronized (mEntries) {
+            if (mRevalidating) {
+                mRevalidateAgain = true;
+                return;
+            }
+            mRevalidating = true;
+        }
+
+        Thread thread = new Thread(TAG) {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                boolean again;
+
+                do {
+                    revalidate();
+                    synchronized (mEntries) {
+                        again = mRevalidateAgain;
+                        mRevalidateAgain = false;
+                        mRevalidating = again;
+                    }
+                } while (again);
+            }
+        };
+        thread.start();
+    }
+
+    /**
+     * Checks every cached entry against the phones of its person. Entries whose
+     * person no longer has a matching number are dropped, and the others pick
+     * up the current name and number type.
+     */
+    private void revalidate() {
+        HashMap<String, ContactInfo> entries;
+
+        ensureLoaded();
+        synchronized (mEntries) {
+            entries = new HashMap<String, ContactInfo>(mEntries);
+        }
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        // Current phones of every cached person
+        HashMap<Long, ArrayList<ContactInfo>> phones = new HashMap<Long, ArrayList<ContactInfo>>();
+
+        for (ContactInfo info : entries.values()) {
+            phones.put(info.personId, null);
+        }
+        if (!queryPhones(phones)) {
+            return;
+        }
+
+        HashMap<String, ContactInfo> updated = new HashMap<String, ContactInfo>();
+        ArrayList<String> removed = new ArrayList<String>();
+
+        for (Map.Entry<String, ContactInfo> entry : entries.entrySet()) {
+            String number = entry.getKey();
+            ContactInfo cached = entry.getValue();
+            ContactInfo current = null;
+            ArrayList<ContactInfo> candidates = phones.get(cached.personId);
+
+            if (candidates != null) {
+                for (ContactInfo candidate : candidates) {
+                    if (PhoneNumberUtils.compare(number, candidate.number)) {
+                        current = candidate;
+                        break;
+                    }
+                }
+            }
+
+            if (current == null) {
+                removed.add(number);
+            } else if (!TextUtils.equals(current.name, cached.name)
+                    || current.type != cached.type
+                    || !TextUtils.equals(current.label, cached.label)) {
+                ContactInfo info = new ContactInfo();
+
+                info.personId = current.personId;
+                info.name = current.name;
+                info.type = current.type;
+                info.label = current.label;
+                info.number = number;
+                updated.put(number, info);
+            }
+        }
+
+        // Holding the database lock, no entry can be put until the changes are written
+        synchronized (mDatabaseLock) {
+            synchronized (mEntries) {
+                // Leave the entries put while the phones were queried alone
+                for (String number : removed) {
+                    ContactInfo current = mEntries.remove(number);
+
+                    if (current == null) {
+                        continue;
+                    }
+                    if (current == entries.get(number)) {
+                        mEvicted.add(number);
+                    } else {
+                        // Put since the snapshot, so among the most recently used anyway
+                        mEntries.put(number, current);
+                    }
+                }
+                Iterator<Map.Entry<String, ContactInfo>> iterator =
+                        updated.entrySet().iterator();
+
+                while (iterator.hasNext()) {
+                    String number = iterator.next().getKey();
+
+                    if (mEntries.get(number) != entries.get(number)) {
+                        iterator.remove();
+                    }
+                }
+            }
+            // Also deletes the removed entries from the database
+            putAll(updated);
+        }
+    }
+
+    /**
+     * Fills in the phones of each person id key of the map.
+     *
+     * @return false if the phones couldn't be queried
+     */
+    private boolean queryPhones(HashMap<Long, ArrayList<ContactInfo>> phones) {
+        Iterator<Long> ids = new ArrayList<Long>(phones.keySet()).iterator();
+        StringBuilder where = new StringBuilder();
+
+        while (ids.hasNext()) {
+            where.setLength(0);
+            where.append(Phones.PERSON_ID).append(" IN (");
+            for (int i = 0; i < IDS_PER_QUERY && ids.hasNext(); i++) {
+                if (i > 0) {
+                    where.append(',');
+                }
+                where.append(ids.next());
+            }
+            where.append(')');
+
+            Cursor cursor = null;
+
+            try {
+                cursor = mResolver.query(Phones.CONTENT_URI,
+                        RecentCallsListActivity.PHONES_PROJECTION, where.toString(), null, null);
+                if (cursor == null) {
+                    return false;
+                }
+                while (cursor.moveToNext()) {
+                    ContactInfo info = new ContactInfo();
+
+                    info.personId = cursor.getLong(RecentCallsListActivity.PERSON_ID_COLUMN_INDEX);
+                    info.name = cursor.getString(RecentCallsListActivity.NAME_COLUMN_INDEX);
+                    info.type = cursor.getInt(RecentCallsListActivity.PHONE_TYPE_COLUMN_INDEX);
+                    info.label = cursor.getString(RecentCallsListActivity.LABEL_COLUMN_INDEX);
+                    info.number = cursor.getString(
+                            RecentCallsListActivity.MATCHED_NUMBER_COLUMN_INDEX);
+
+                    ArrayList<ContactInfo> list = phones.get(info.personId);
+
+                    if (list == null) {
+                        list = new ArrayList<ContactInfo>(2);
+                        phones.put(info.personId, list);
+                    }
+                    list.add(info);
+                }
+            } catch (SQLiteException e) {
+                Log.w(TAG, "Exception while checking the cache", e);
+                return false;
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,448 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteException;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.provider.Contacts.People;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Process wide in-memory copy of the contacts shown by the contact lists,
+ * used to answer list queries and filters without querying the provider. The
+ * lists of all the tabs share it. Every word of the display name and
+ * of the phonetic name is indexed by its collation key, so that a filter
+ * matches the same contacts as {@link People#CONTENT_FILTER_URI}: each word of
+ * the filter must be a prefix of some word of the contact's names.
+ * <p>
+ * The index holds the rows of {@link ContactsListActivity#CONTACTS_PROJECTION}
+ * for all contacts, in list order, and is rebuilt in the background when the
+ * contacts change. While it is being built, {@link #match} returns null and
+ * callers fall back to the provider. An empty filter matches all the contacts
+ * of the selection.
+ */
+final class ContactNameIndex {
+    private static final String TAG = "ContactNameIndex";
+
+    /** Match all contacts */
+    static final int SELECTION_ALL = 0;
+    /** Match the contacts having a phone number */
+    static final int SELECTION_WITH_PHONES = 1;
+    /** Match the starred contacts */
+    static final int SELECTION_STARRED = 2;
+
+    /** Delay before rebuilding, so that bursts of changes cause a single rebuild */
+    private static final long REBUILD_DELAY_MS = 1000;
+
+    private static final int MESSAGE_REBUILD = 1;
+
+    /** Rows narrowed down between cancellation checks, minus one */
+    private static final int CANCEL_CHECK_MASK = 255;
+
+    private static final String[] PROJECTION;
+    private static final int COLUMN_COUNT = ContactsListActivity.CONTACTS_PROJECTION.length;
+    private static final int PHONETIC_NAME_COLUMN_INDEX = COLUMN_COUNT;
+
+    static {
+        PROJECTION = new String[COLUMN_COUNT + 1];
+        System.arraycopy(ContactsListActivity.CONTACTS_PROJECTION, 0, PROJECTION, 0,
+                COLUMN_COUNT);
+        PROJECTION[PHONETIC_NAME_COLUMN_INDEX] = People.PHONETIC_NAME;
+    }
+
+    /** An immutable snapshot of the contacts */
+    private static final class Index {
+        /** Rows of CONTACTS_PROJECTION, in list order */
+        Object[][] rows;
+        /** Collation keys of the name words, sorted */
+        String[] keys;
+        /** Row of each key */
+        int[] keyRows;
+        /** Collation keys of the name words, by row */
+        String[] rowKeys;
+        /** Index of the first key of each row in rowKeys, plus the key count */
+        int[] rowKeyStarts;
+    }
+
+    /** Rows matching a filter, used to narrow down the next filter */
+    static final class Matches {
+        final Index index;
+        final String filter;
+        final int selection;
+        /** Matching rows, in list order */
+        final int[] rows;
+
+        Matches(Index index, String filter, int selection, int[] rows) {
+            this.index = index;
+            this.filter = filter;
+            this.selection = selection;
+            this.rows = rows;
+        }
+    }
+
+    /** Tells a running filter that its result is no longer wanted */
+    interface Canceler {
+        boolean isCanceled();
+    }
+
+    private static ContactNameIndex sInstance;
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler;
+
+    /** The current index, or null while it is (re)built */
+    private volatile Index mIndex;
+
+    private final ContentObserver mContactsObserver;
+
+    public static synchronized ContactNameIndex getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ContactNameIndex(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ContactNameIndex(Context context) {
+        mResolver = context.getContentResolver();
+
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+
+        thread.start();
+        mHandler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                case MESSAGE_REBUILD:
+                    mIndex = build();
+                    break;
+                }
+            }
+        };
+
+        mContactsObserver = new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                // Stale results must not be served, the provider answers until
+                // the index is rebuilt.
+                mIndex = null;
+                mHandler.removeMessages(MESSAGE_REBUILD);
+                mHandler.sendEmptyMessageDelayed(MESSAGE_REBUILD, REBUILD_DELAY_MS);
+            }
+        };
+        mResolver.registerContentObserver(People.CONTENT_URI, true, mContactsObserver);
+        mHandler.sendEmptyMessage(MESSAGE_REBUILD);
+    }
+
+    /**
+     * Returns true if the index is built and up to date.
+     */
+    public boolean isReady() {
+        return mIndex != null;
+    }
+
+    /**
+     * Returns the contacts matching the filter, or null if the index isn't
+     * ready or the filter was canceled. May be called from any thread.
+     * <p>
+     * When the filter extends the one of {@code previous}, e.g. "joh" after
+     * "jo", only the rows matching the previous filter are checked, so the cost
+     * is proportional to the previous matches rather than to the contacts.
+     *
+     * @param selection one of the SELECTION_ constants
+     * @param previous the result of the previous filter, or null
+     * @param canceler checked while filtering, or null
+     */
+    public Matches match(String filter, int selection, Matches previous, Canceler canceler) {
+        final Index index = mIndex;
+
+        if (index == null) {
+            return null;
+        }
+
+        final String[] words = getWordKeys(filter);
+
+        if (previous != null && previous.index == index && previous.selection == selection
+                && previous.filter.length() > 0 && filter.startsWith(previous.filter)) {
+            // Any contact matching the longer filter matched the shorter one
+            int[] rows = new int[previous.rows.length];
+            int count = 0;
+
+            for (int i = 0; i < previous.rows.length; i++) {
+                if (canceler != null && (i & CANCEL_CHECK_MASK) == 0 && canceler.isCanceled()) {
+                    return null;
+                }
+                int row = previous.rows[i];
+
+                if (matchesWords(index, row, words)) {
+                    rows[count++] = row;
+                }
+            }
+            return new Matches(index, filter, selection, trim(rows, count));
+        }
+
+        final int rowCount = index.rows.length;
+        // Whether each row matched all the filter words so far
+        boolean[] matches = null;
+
+        for (int i = 0; i < words.length; i++) {
+            if (canceler != null && canceler.isCanceled()) {
+                return null;
+            }
+            boolean[] wordMatches = new boolean[rowCount];
+
+            findPrefix(index, words[i], wordMatches);
+            if (matches == null) {
+                matches = wordMatches;
+            } else {
+                for (int row = 0; row < rowCount; row++) {
+                    matches[row] &= wordMatches[row];
+                }
+            }
+        }
+
+        int[] rows = new int[rowCount];
+        int count = 0;
+
+        for (int row = 0; row < rowCount; row++) {
+            if ((matches == null || matches[row]) && isSelected(index.rows[row], selection)) {
+                rows[count++] = row;
+            }
+        }
+        return new Matches(index, filter, selection, trim(rows, count));
+    }
+
+    /**
+     * Returns the matching contacts, with the columns of
+     * {@link ContactsListActivity#CONTACTS_PROJECTION} in list order.
+     */
+    public Cursor getCursor(Matches matches) {
+        final Object[][] rows = matches.index.rows;
+        MatrixCursor cursor = new MatrixCursor(ContactsListActivity.CONTACTS_PROJECTION,
+                Math.max(matches.rows.length, 1));
+
+        for (int row : matches.rows) {
+            cursor.addRow(rows[row]);
+        }
+        cursor.setNotificationUri(mResolver, People.CONTENT_URI);
+        return cursor;
+    }
+
+    /**
+     * Returns true if each word is a prefix of a name word of the row.
+     */
+    private static boolean matchesWords(Index index, int row, String[] words) {
+        final String[] rowKeys = index.rowKeys;
+        final int start = index.rowKeyStarts[row];
+        final int end = index.rowKeyStarts[row + 1];
+
+        for (String word : words) {
+            boolean found = false;
+
+            for (int i = start; i < end && !found; i++) {
+                found = rowKeys[i].startsWith(word);
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int[] trim(int[] rows, int count) {
+        if (count == rows.length) {
+            return rows;
+        }
+        int[] trimmed = new int[count];
+
+        System.arraycopy(rows, 0, trimmed, 0, count);
+        return trimmed;
+    }
+
+    /**
+     * Flags the rows having a word starting with the key.
+     */
+    private static void findPrefix(Index index, String key, boolean[] matches) {
+        final String[] keys = index.keys;
+        // Find the first key not below the prefix; keys may repeat
+        int low = 0;
+        int high = keys.length;
+
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+
+            if (keys[middle].compareTo(key) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        for (int i = low; i < keys.length && keys[i].startsWith(key); i++) {
+            matches[index.keyRows[i]] = true;
+        }
+    }
+
+    private static boolean isSelected(Object[] row, int selection) {
+        switch (selection) {
+            case SELECTION_WITH_PHONES:
+                return row[ContactsListActivity.PRIMARY_PHONE_ID_COLUMN_INDEX] != null;
+
+            case SELECTION_STARRED: {
+                Object starred = row[ContactsListActivity.STARRED_COLUMN_INDEX];
+                return starred != null && ((Long) starred) == 1;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads all the contacts and indexes their names. Runs on the index
+     * thread.
+     */
+    private Index build() {
+        Cursor cursor = null;
+
+        try {
+            cursor = mResolver.query(People.CONTENT_URI, PROJECTION, null, null,
+                    ContactsListActivity.getSortOrder(ContactsListActivity.CONTACTS_PROJECTION));
+            if (cursor == null) {
+                return null;
+            }
+
+            final int rowCount = cursor.getCount();
+            Index index = new Index();
+            ArrayList<String> keys = new ArrayList<String>(rowCount * 2);
+            ArrayList<Integer> keyRows = new ArrayList<Integer>(rowCount * 2);
+
+            index.rows = new Object[rowCount][];
+            index.rowKeyStarts = new int[rowCount + 1];
+            for (int row = 0; cursor.moveToNext(); row++) {
+                index.rows[row] = readRow(cursor);
+                index.rowKeyStarts[row] = keys.size();
+                addWords(cursor.getString(ContactsListActivity.NAME_COLUMN_INDEX), row,
+                        keys, keyRows);
+                addWords(cursor.getString(PHONETIC_NAME_COLUMN_INDEX), row, keys, keyRows);
+            }
+
+            // Sort the keys, keeping their rows alongside
+            final int keyCount = keys.size();
+
+            index.rowKeyStarts[rowCount] = keyCount;
+            Integer[] order = new Integer[keyCount];
+
+            for (int i = 0; i < keyCount; i++) {
+                order[i] = i;
+            }
+            final String[] unsorted = keys.toArray(new String[keyCount]);
+
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return unsorted[a].compareTo(unsorted[b]);
+                }
+            });
+
+            index.keys = new String[keyCount];
+            index.keyRows = new int[keyCount];
+            for (int i = 0; i < keyCount; i++) {
+                index.keys[i] = unsorted[order[i]];
+                index.keyRows[i] = keyRows.get(order[i]);
+            }
+            index.rowKeys = unsorted;
+            return index;
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Exception while indexing contacts", e);
+            return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    private static Object[] readRow(Cursor cursor) {
+        Object[] row = new Object[COLUMN_COUNT];
+
+        for (int i = 0; i < COLUMN_COUNT; i++) {
+            if (cursor.isNull(i)) {
+                continue;
+            }
+            switch (i) {
+                case ContactsListActivity.ID_COLUMN_INDEX:
+                case ContactsListActivity.STARRED_COLUMN_INDEX:
+                case ContactsListActivity.PRIMARY_PHONE_ID_COLUMN_INDEX:
+                case ContactsListActivity.PRIMARY_EMAIL_ID_COLUMN_INDEX:
+                case ContactsListActivity.TYPE_COLUMN_INDEX:
+                case ContactsListActivity.SERVER_STATUS_COLUMN_INDEX:
+                    row[i] = cursor.getLong(i);
+                    break;
+
+                default:
+                    row[i] = cursor.getString(i);
+                    break;
+            }
+        }
+        return row;
+    }
+
+    private static void addWords(String name, int row, ArrayList<String> keys,
+            ArrayList<Integer> keyRows) {
+        if (name == null) {
+            return;
+        }
+        for (String key : getWordKeys(name)) {
+            keys.add(key);
+            keyRows.add(row);
+        }
+    }
+
+    /**
+     * Splits the text into words, and returns the collation key of each.
+     */
+    static String[] getWordKeys(String text) {
+        ArrayList<String> keys = new ArrayList<String>();
+        final int length = text.length();
+        int start = -1;
+
+        for (int i = 0; i <= length; i++) {
+            boolean inWord = i < length && Character.isLetterOrDigit(text.charAt(i));
+
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                String key = DatabaseUtils.getCollationKey(text.substring(start, i));
+
+                if (key.length() > 0) {
+                    keys.add(key);
+                }
+                start = -1;
+            }
+        }
+        return keys.toArray(new String[keys.size()]);
+    }
+}
@@ -0,0 +1,486 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Message;
+import android.os.Process;
+import android.provider.Contacts.Photos;
+import android.util.Log;
+import android.widget.ImageView;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Loads the photos shown in the contact lists, so the list cursors don't have
+ * to carry them. The photos of the rows bound together are read in a single
+ * query and decoded on a small pool of background threads, scaled down to the
+ * size of the list thumbnail. They are kept in a process wide cache keyed by
+ * person id, which keeps the most recently used photos, up to
+ * {@link #MAX_CACHE_BYTES} of bitmaps, so photos survive requeries and are
+ * shared by all the lists. When the photos change, the cached ones are
+ * reloaded as they get bound again, and shown until then.
+ * <p>
+ * Must only be used from the UI thread.
+ */
+final class ContactPhotoLoader implements Handler.Callback {
+    private static final String TAG = "ContactPhotoLoader";
+
+    /** Number of threads decoding photos */
+    private static final int THREAD_COUNT = 2;
+
+    /** Maximum number of bytes used by the cached bitmaps */
+    private static final int MAX_CACHE_BYTES = 1536 * 1024;
+
+    /** Bytes charged for remembering that a contact has no photo */
+    private static final int NO_PHOTO_BYTES = 64;
+
+    /** Size of the photo in contacts_list_item_photo */
+    private static final int THUMBNAIL_SIZE_DIP = 54;
+
+    /** Maximum number of people whose photos are read by a single query */
+    private static final int IDS_PER_QUERY = 20;
+
+    /**
+     * Number of times a photo is requested again when its load didn't cache
+     * it, e.g. because the query failed, before the default photo is kept
+     */
+    private static final int MAX_RETRIES = 2;
+
+    private static final String[] PHOTOS_PROJECTION = new String[] {
+        Photos.PERSON_ID, Photos.DATA
+    };
+
+    private static final int PERSON_ID_COLUMN_INDEX = 0;
+    private static final int DATA_COLUMN_INDEX = 1;
+
+    private static final int MESSAGE_LOAD_QUEUED = 1;
+    private static final int MESSAGE_PHOTOS_LOADED = 2;
+
+    /** A decoded photo, with the generation of the photos it was read in */
+    private static final class CachedPhoto {
+        /** Null if the contact has no photo */
+        final Bitmap photo;
+        final int generation;
+
+        CachedPhoto(Bitmap photo, int generation) {
+            this.photo = photo;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * Decoded photos by person id, least recently used first. Guarded by
+     * itself, as are the other caching fields.
+     */
+    private static final LinkedHashMap<Long, CachedPhoto> sCache =
+            new LinkedHashMap<Long, CachedPhoto>(64, 0.75f, true);
+    private static int sCacheBytes;
+    /** Incremented when the photos change, making the cached ones stale */
+    private static int sGeneration;
+
+    private static ExecutorService sExecutor;
+    private static ContentObserver sPhotosObserver;
+
+    private final ContentResolver mResolver;
+    private final int mDefaultResourceId;
+    private final int mThumbnailSize;
+    private final Handler mHandler = new Handler(this);
+
+    /**
+     * Person id wanted by each view still showing the default photo. Read by
+     * the loading threads, so guarded by itself.
+     */
+    private final HashMap<ImageView, Long> mPending = new HashMap<ImageView, Long>();
+
+    /** Ids queued or being loaded for this loader */
+    private final HashSet<Long> mLoading = new HashSet<Long>();
+
+    /** Ids waiting for {@link #MESSAGE_LOAD_QUEUED} */
+    private final ArrayList<Long> mQueued = new ArrayList<Long>();
+
+    /** Retries made by person id, for the photos whose last load missed */
+    private final HashMap<Long, Integer> mRetries = new HashMap<Long, Integer>();
+
+    private boolean mPaused;
+    private volatile boolean mStopped;
+
+    public ContactPhotoLoader(Context context, int defaultResourceId) {
+        mResolver = context.getContentResolver();
+        mDefaultResourceId = defaultResourceId;
+        mThumbnailSize = (int) (THUMBNAIL_SIZE_DIP
+                * context.getResources().getDisplayMetrics().density + 0.5f);
+
+        synchronized (sCache) {
+            if (sExecutor == null) {
+                sExecutor = Executors.newFixedThreadPool(THREAD_COUNT, new ThreadFactory() {
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(TAG) {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        };
+                    }
+                });
+
+                // The observer runs on the thread of the first loader, which
+                // is the UI thread.
+                sPhotosObserver = new ContentObserver(new Handler()) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        invalidateCache();
+                    }
+                };
+                context.getApplicationContext().getContentResolver().registerContentObserver(
+                        Photos.CONTENT_URI, true, sPhotosObserver);
+            }
+        }
+    }
+
+    /**
+     * Shows the photo of a person in the view. If the photo isn't cached, the
+     * default photo is shown until it is loaded. A stale photo is shown until
+     * it is reloaded.
+     */
+    public void loadPhoto(ImageView view, long personId) {
+        if (personId <= 0) {
+            removePending(view);
+            view.setImageResource(mDefaultResourceId);
+            return;
+        }
+
+        if (bindCachedPhoto(view, personId)) {
+            removePending(view);
+            return;
+        }
+
+        synchronized (mPending) {
+            mPending.put(view, personId);
+        }
+        if (!mPaused) {
+            requestPhoto(personId);
+        }
+    }
+
+    /**
+     * Stops starting new loads, e.g. while the list is flinging. The views
+     * bound in the meantime are loaded by {@link #resume()}.
+     */
+    public void pause() {
+        mPaused = true;
+    }
+
+    public void resume() {
+        if (!mPaused) {
+            return;
+        }
+        mPaused = false;
+
+        synchronized (mPending) {
+            for (Long personId : mPending.values()) {
+                requestPhoto(personId);
+            }
+        }
+    }
+
+    /**
+     * Drops all pending requests. The loader must not be used afterwards.
+     */
+    public void stop() {
+        mStopped = true;
+        synchronized (mPending) {
+            mPending.clear();
+        }
+        mLoading.clear();
+        mQueued.clear();
+        mRetries.clear();
+        mHandler.removeMessages(MESSAGE_LOAD_QUEUED);
+        mHandler.removeMessages(MESSAGE_PHOTOS_LOADED);
+    }
+
+    public boolean handleMessage(Message msg) {
+        if (mStopped) {
+            return true;
+        }
+
+        switch (msg.what) {
+            case MESSAGE_LOAD_QUEUED: {
+                loadQueuedPhotos();
+                return true;
+            }
+
+            case MESSAGE_PHOTOS_LOADED: {
+                @SuppressWarnings("unchecked")
+                final ArrayList<Long> personIds = (ArrayList<Long>) msg.obj;
+                final HashSet<Long> missed = new HashSet<Long>();
+
+                mLoading.removeAll(personIds);
+                synchronized (mPending) {
+                    Iterator<Map.Entry<ImageView, Long>> iterator =
+                            mPending.entrySet().iterator();
+
+                    while (iterator.hasNext()) {
+                        Map.Entry<ImageView, Long> entry = iterator.next();
+                        Long personId = entry.getValue();
+
+                        if (personIds.contains(personId)) {
+                            if (bindCachedPhoto(entry.getKey(), personId)) {
+                                iterator.remove();
+                                mRetries.remove(personId);
+                            } else {
+                                missed.add(personId);
+                            }
+                        }
+                    }
+                }
+
+                // The load was skipped or failed, or the photo was evicted
+                // already. Resuming requests the pending photos anyway.
+                if (!mPaused && !missed.isEmpty()) {
+                    final HashSet<Long> failed = new HashSet<Long>();
+
+                    for (Long personId : missed) {
+                        Integer retries = mRetries.get(personId);
+                        int count = retries != null ? retries : 0;
+
+                        if (count < MAX_RETRIES) {
+                            mRetries.put(personId, count + 1);
+                            requestPhoto(personId);
+                        } else {
+                            mRetries.remove(personId);
+                            failed.add(personId);
+                        }
+                    }
+                    // Keep the default photo until the views are bound again
+                    if (!failed.isEmpty()) {
+                        synchronized (mPending) {
+                            mPending.values().removeAll(failed);
+                        }
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void removePending(ImageView view) {
+        synchronized (mPending) {
+            mPending.remove(view);
+        }
+    }
+
+    private boolean isPending(Long personId) {
+        synchronized (mPending) {
+            return mPending.containsValue(personId);
+        }
+    }
+
+    /**
+     * Binds the cached photo of the person, or the default photo if there is
+     * none. Returns false if the photo has to be loaded, because it isn't
+     * cached or is stale.
+     */
+    private boolean bindCachedPhoto(ImageView view, long personId) {
+        CachedPhoto cached;
+        boolean fresh;
+
+        synchronized (sCache) {
+            cached = sCache.get(personId);
+            fresh = cached != null && cached.generation == sGeneration;
+        }
+
+        if (cached != null && cached.photo != null) {
+            view.setImageBitmap(cached.photo);
+        } else {
+            view.setImageResource(mDefaultResourceId);
+        }
+        return fresh;
+    }
+
+    /**
+     * Queues the photo of a person for loading. The photos queued while the
+     * list binds its rows are loaded together once it is done.
+     */
+    private void requestPhoto(Long personId) {
+        if (!mLoading.add(personId)) {
+            return;
+        }
+        mQueued.add(personId);
+        if (!mHandler.hasMessages(MESSAGE_LOAD_QUEUED)) {
+            mHandler.sendEmptyMessage(MESSAGE_LOAD_QUEUED);
+        }
+    }
+
+    private void loadQueuedPhotos() {
+        final int count = mQueued.size();
+
+        for (int start = 0; start < count; start += IDS_PER_QUERY) {
+            final ArrayList<Long> batch = new ArrayList<Long>(
+                    mQueued.subList(start, Math.min(start + IDS_PER_QUERY, count)));
+
+            sExecutor.execute(new Runnable() {
+                public void run() {
+                    if (!mStopped) {
+                        loadPhotos(batch);
+                    }
+                    mHandler.obtainMessage(MESSAGE_PHOTOS_LOADED, batch).sendToTarget();
+                }
+            });
+        }
+        mQueued.clear();
+    }
+
+    /**
+     * Reads the photos of the people in one query and caches them. Runs on a
+     * loading thread. Views get rebound to other contacts while scrolling, so
+     * only the photos still wanted when the batch's turn comes are read.
+     */
+    private void loadPhotos(ArrayList<Long> personIds) {
+        StringBuilder where = new StringBuilder();
+        HashSet<Long> wanted = new HashSet<Long>();
+
+        for (Long personId : personIds) {
+            if (isPending(personId)) {
+                where.append(wanted.isEmpty() ? "" : ",").append(personId);
+                wanted.add(personId);
+            }
+        }
+        if (wanted.isEmpty()) {
+            return;
+        }
+        where.insert(0, Photos.PERSON_ID + " IN (").append(')');
+
+        // Photos changed while reading are stale right away
+        final int generation;
+        synchronized (sCache) {
+            generation = sGeneration;
+        }
+        Cursor cursor = null;
+
+        try {
+            cursor = mResolver.query(Photos.CONTENT_URI, PHOTOS_PROJECTION,
+                    where.toString(), null, null);
+            if (cursor == null) {
+                Log.w(TAG, "Photos query returned null");
+                return;
+            }
+            while (cursor.moveToNext()) {
+                Long personId = cursor.getLong(PERSON_ID_COLUMN_INDEX);
+                Bitmap photo = null;
+
+                if (!cursor.isNull(DATA_COLUMN_INDEX)) {
+                    photo = decodePhoto(cursor.getBlob(DATA_COLUMN_INDEX));
+                }
+                if (wanted.remove(personId)) {
+                    cachePhoto(personId, photo, generation);
+                }
+            }
+            // The rest have no photo row at all
+            for (Long personId : wanted) {
+                cachePhoto(personId, null, generation);
+            }
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Exception while reading photos", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Decodes a photo, scaled down by a power of two as long as it stays larger
+     * than the thumbnail. Returns null if the photo can't be decoded.
+     */
+    private Bitmap decodePhoto(byte[] data) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        int sampleSize = 1;
+
+        while (options.outWidth / (sampleSize * 2) >= mThumbnailSize
+                && options.outHeight / (sampleSize * 2) >= mThumbnailSize) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+
+        try {
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        } catch (OutOfMemoryError e) {
+            // Not enough memory for the photo, use the default one instead
+            return null;
+        }
+    }
+
+    private static void cachePhoto(Long personId, Bitmap photo, int generation) {
+        synchronized (sCache) {
+            CachedPhoto previous = sCache.put(personId, new CachedPhoto(photo, generation));
+
+            if (previous != null) {
+                sCacheBytes -= getByteCount(previous.photo);
+            }
+            sCacheBytes += getByteCount(photo);
+
+            Iterator<Map.Entry<Long, CachedPhoto>> iterator = sCache.entrySet().iterator();
+
+            while (sCacheBytes > MAX_CACHE_BYTES && iterator.hasNext()) {
+                Map.Entry<Long, CachedPhoto> eldest = iterator.next();
+
+                sCacheBytes -= getByteCount(eldest.getValue().photo);
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Marks all the cached photos stale. They are still shown, and reloaded
+     * one person at a time as they get bound.
+     */
+    private static void invalidateCache() {
+        synchronized (sCache) {
+            sGeneration++;
+        }
+    }
+
+    private static int getByteCount(Bitmap photo) {
+        return photo != null ? photo.getRowBytes() * photo.getHeight() : NO_PHOTO_BYTES;
+    }
+}
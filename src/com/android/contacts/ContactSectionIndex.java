@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.database.Cursor;
+import android.widget.AlphabetIndexer;
+import android.widget.SectionIndexer;
+
+import java.util.Locale;
+
+/**
+ * The sections of a contact list, computed once when its cursor is loaded.
+ * Lookups only use the precomputed section positions, so fast scrolling never
+ * moves the cursor shown by the list.
+ */
+final class ContactSectionIndex implements SectionIndexer {
+    static final ContactSectionIndex EMPTY =
+            new ContactSectionIndex(new Object[0], new int[0]);
+
+    private final Object[] mSections;
+    /** First position of each section, in ascending order */
+    private final int[] mPositions;
+
+    private ContactSectionIndex(Object[] sections, int[] positions) {
+        mSections = sections;
+        mPositions = positions;
+    }
+
+    /**
+     * Computes the sections of a cursor sorted like the contact list. The
+     * cursor is moved, so it must not be used by another thread meanwhile.
+     *
+     * @param alphabet the sections used outside of Japan
+     */
+    static ContactSectionIndex build(Cursor cursor, String alphabet) {
+        if (cursor == null) {
+            return EMPTY;
+        }
+
+        final SectionIndexer indexer;
+
+        if (Locale.getDefault().getLanguage().equals(Locale.JAPAN.getLanguage())) {
+            indexer = new JapaneseContactListIndexer(cursor,
+                    ContactsListActivity.SORT_STRING_INDEX);
+        } else {
+            indexer = new AlphabetIndexer(cursor, ContactsListActivity.NAME_COLUMN_INDEX,
+                    alphabet);
+        }
+
+        final Object[] sections = indexer.getSections();
+        final int[] positions = new int[sections.length];
+
+        for (int i = 0; i < sections.length; i++) {
+            positions[i] = indexer.getPositionForSection(i);
+        }
+
+        // Stop the indexer from observing the cursor
+        if (indexer instanceof AlphabetIndexer) {
+            ((AlphabetIndexer) indexer).setCursor(null);
+        } else {
+            ((JapaneseContactListIndexer) indexer).setCursor(null);
+        }
+        cursor.moveToPosition(-1);
+
+        return new ContactSectionIndex(sections, positions);
+    }
+
+    public Object[] getSections() {
+        return mSections;
+    }
+
+    public int getPositionForSection(int section) {
+        if (section < 0 || section >= mPositions.length) {
+            return -1;
+        }
+        return mPositions[section];
+    }
+
+    /**
+     * Returns the last section starting at or before the position.
+     */
+    public int getSectionForPosition(int position) {
+        int low = 0;
+        int high = mPositions.length;
+
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+
+            if (mPositions[middle] <= position) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        // Position 0 always maps to the first section
+        return Math.max(low - 1, 0);
+    }
+}
@@ -35,9 +35,10 @@ import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.database.CharArrayBuffer;
 import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.MergeCursor;
 import android.database.sqlite.SQLiteException;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Rect;
@@ -47,9 +48,12 @@ import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Message;
 import android.os.Parcelable;
+import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.preference.PreferenceManager;
 import android.provider.Contacts;
@@ -63,7 +67,6 @@ import android.provider.Contacts.Intents.Insert;
 import android.provider.Contacts.Intents.UI;
 import android.text.TextUtils;
 import android.util.Log;
-import android.util.SparseArray;
 import android.view.ContextMenu;
 import android.view.Gravity;
 import android.view.KeyEvent;
@@ -75,8 +78,8 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.view.inputmethod.InputMethodManager;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
-import android.widget.AlphabetIndexer;
 import android.widget.Filter;
 import android.widget.ImageView;
 import android.widget.ListView;
@@ -87,7 +90,6 @@ import android.widget.TextView;
 import android.widget.Toast;
 import com.android.contacts.ui.widget.DontPressWithParentImageView;
 
-import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Locale;
@@ -123,6 +125,7 @@ public final class ContactsListActivity extends ListActivity
     public static final int MENU_IMPORT_CONTACTS = 12;
     public static final int MENU_EXPORT_CONTACTS = 13;
     public static final int MENU_CLEAR_FREQ_CONTACTS = 14;
+    public static final int MENU_EXPORT_CHANGED_CONTACTS = 16;
 
     static final int MENU_ITEM_SEND_BT = 14;
     static final int MENU_ITEM_GET_BT  = 15;
@@ -241,10 +244,12 @@ public final class ContactsListActivity extends ListActivity
         People.PRIMARY_PHONE_ID, // 6
         People.PRIMARY_EMAIL_ID, // 7
         People.PRESENCE_STATUS, // 8
-        "photo_data", // 9
-        People.TIMES_CONTACTED, // 10 (not displayed, but required for the order by to work)
+        People.TIMES_CONTACTED, // 9 (not displayed, but required for the order by to work)
     };
 
+    /** Maximum number of frequent contacts shown after the starred ones */
+    static final int STREQUENT_FREQUENT_LIMIT = 25;
+
     static final String[] PHONES_PROJECTION = new String[] {
         Phones._ID, // 0
         NAME_COLUMN, // 1
@@ -275,7 +280,6 @@ public final class ContactsListActivity extends ListActivity
     static final int PRIMARY_PHONE_ID_COLUMN_INDEX = 6;
     static final int PRIMARY_EMAIL_ID_COLUMN_INDEX = 7;
     static final int SERVER_STATUS_COLUMN_INDEX = 8;
-    static final int PHOTO_COLUMN_INDEX = 9;
     static final int SORT_STRING_INDEX = 9;
 
     static final int PHONES_PERSON_ID_INDEX = 6;
@@ -355,8 +359,48 @@ public final class ContactsListActivity extends ListActivity
     private String mQueryData;    
 
     private Handler mHandler = new Handler();
+
+    /**
+     * Runs the background work of the list queries, for all the lists, one
+     * query at a time. Created when first needed.
+     */
+    private static Handler sQueryWorker;
+
+    /** Quiet time after a content change before requerying */
+    private static final long REQUERY_DELAY_MS = 500;
+    /** Maximum time a content change waits for its requery */
+    private static final long REQUERY_MAX_DELAY_MS = 3000;
+
+    private boolean mResumed;
+    /** Whether the contacts changed while the activity wasn't visible */
+    private boolean mRequeryPending;
+    /** Uptime of the first change waiting for a requery, or 0 */
+    private long mFirstChangeTime;
+
+    private final Runnable mRequeryRunnable = new Runnable() {
+        public void run() {
+            mFirstChangeTime = 0;
+            mAdapter.requeryNow();
+        }
+    };
+
+    /**
+     * Incremented for each query, so that the results of older ones are
+     * dropped. Read by the query worker.
+     */
+    private volatile int mQueryGeneration;
+    /** When the current query was started, in uptime millis */
+    private long mQueryStartTime;
+    /** Timing of the current query, until its first row is bound */
+    private ContactsQueryStats.Sample mQuerySample;
     private SharedPreferences ePrefs;
 
+    /** Answers name filters from memory, null if the list can't be filtered */
+    private ContactNameIndex mNameIndex;
+
+    /** Result of the last filter answered by the index. Only used by the filter thread. */
+    private ContactNameIndex.Matches mLastMatches;
+
     private class ImportTypeSelectedListener implements DialogInterface.OnClickListener {
         public static final int IMPORT_FROM_SIM = 0;
         public static final int IMPORT_FROM_SDCARD = 1;
@@ -538,6 +582,8 @@ public final class ContactsListActivity extends ListActivity
         list.setOnCreateContextMenuListener(this);
         if ((mMode & MODE_MASK_NO_FILTER) != MODE_MASK_NO_FILTER) {
             list.setTextFilterEnabled(true);
+            // Start indexing the names before the first filter comes in
+            mNameIndex = ContactNameIndex.getInstance(this);
         }
 
         if ((mMode & MODE_MASK_CREATE_NEW) != 0) {
@@ -554,6 +600,7 @@ public final class ContactsListActivity extends ListActivity
 
         mAdapter = new ContactItemListAdapter(this);
         setListAdapter(mAdapter);
+        list.setOnScrollListener(mAdapter);
 
         // We manually save/restore the listview state
         list.setSaveEnabled(false);
@@ -746,8 +793,52 @@ public final class ContactsListActivity extends ListActivity
             // We need to start a query here the first time the activity is launched, as long
             // as we aren't doing a filter.
             startQuery();
+        } else if (mRequeryPending) {
+            // The contacts changed while we were in the background
+            mAdapter.requeryNow();
+        } else if (!mJustCreated && mAdapter.loadPrefs()) {
+            // Display preferences were changed while we weren't running
+            mAdapter.notifyDataSetChanged();
         }
         mJustCreated = false;
+        mRequeryPending = false;
+        mResumed = true;
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+
+        mResumed = false;
+        if (mFirstChangeTime != 0) {
+            // Leave the requery for when we are visible again
+            mHandler.removeCallbacks(mRequeryRunnable);
+            mFirstChangeTime = 0;
+            mRequeryPending = true;
+        }
+    }
+
+    /**
+     * Requeries the list after a content change. Changes coming in bursts,
+     * e.g. during a sync, are coalesced into a single requery run once the
+     * changes pause for {@link #REQUERY_DELAY_MS}, or at the latest
+     * {@link #REQUERY_MAX_DELAY_MS} after the first change. Changes seen while
+     * the activity isn't visible are left for when it is resumed.
+     */
+    void scheduleRequery() {
+        if (!mResumed) {
+            mRequeryPending = true;
+            return;
+        }
+
+        final long now = SystemClock.uptimeMillis();
+
+        if (mFirstChangeTime == 0) {
+            mFirstChangeTime = now;
+        }
+        mHandler.removeCallbacks(mRequeryRunnable);
+        mHandler.postAtTime(mRequeryRunnable,
+                Math.min(now + REQUERY_DELAY_MS, mFirstChangeTime + REQUERY_MAX_DELAY_MS));
     }
 
     @Override
@@ -761,8 +852,10 @@ public final class ContactsListActivity extends ListActivity
             startQuery();
         } else {
             // Run the filtered query on the adapter
-            ((ContactItemListAdapter) getListAdapter()).onContentChanged();
+            ((ContactItemListAdapter) getListAdapter()).requeryNow();
         }
+        // That covers the changes seen while stopped
+        mRequeryPending = false;
     }
 
     private void updateGroup() {
@@ -790,6 +883,15 @@ public final class ContactsListActivity extends ListActivity
         mListHasFocus = icicle.getBoolean(FOCUS_KEY);
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        if (mAdapter != null) {
+            mAdapter.stopPhotoLoader();
+        }
+    }
+
     @Override
     protected void onStop() {
         super.onStop();
@@ -799,6 +901,10 @@ public final class ContactsListActivity extends ListActivity
         // in response to onRestart() setLoading(false) will be called.
         mAdapter.setLoading(true);
         mAdapter.changeCursor(null);
+        // Drop the result of a query still running
+        mQueryGeneration++;
+        mQuerySample = null;
+        ContactsQueryStats.dump();
 
         if (mMode == MODE_QUERY) {
             // Make sure the search box is closed
@@ -857,6 +963,8 @@ public final class ContactsListActivity extends ListActivity
         if (getResources().getBoolean(R.bool.config_allow_export_to_sdcard)) {
             menu.add(0, MENU_EXPORT_CONTACTS, 0, R.string.export_contact_list)
                     .setIcon(R.drawable.ic_menu_export_contact);
+            menu.add(0, MENU_EXPORT_CHANGED_CONTACTS, 0, R.string.export_changed_contacts)
+                    .setIcon(R.drawable.ic_menu_export_contact);
         }
 
         /**
@@ -982,6 +1090,12 @@ public final class ContactsListActivity extends ListActivity
                 }
                 return true;
 
+            case MENU_EXPORT_CHANGED_CONTACTS: {
+                VCardExporter exporter = new VCardExporter(ContactsListActivity.this, mHandler);
+                exporter.startDifferentialExportVCardToSdCard();
+                return true;
+            }
+
             case MENU_EXPORT_CONTACTS:
                 handleExportContacts();
                 
@@ -1486,7 +1600,7 @@ public final class ContactsListActivity extends ListActivity
         }
     }
 
-    private static String getSortOrder(String[] projectionType) {
+    static String getSortOrder(String[] projectionType) {
         if (Locale.getDefault().equals(Locale.JAPAN) &&
                 projectionType == CONTACTS_PROJECTION) {
             return SORT_STRING + " ASC";
@@ -1500,11 +1614,194 @@ public final class ContactsListActivity extends ListActivity
 
         // Cancel any pending queries
         mQueryHandler.cancelOperation(QUERY_TOKEN);
+        final Integer generation = ++mQueryGeneration;
+        mQueryStartTime = SystemClock.uptimeMillis();
+
+        // Serve the contacts from the process wide cache when it covers the mode
+        int selection = getNameIndexSelection();
+
+        if (mMode == MODE_STREQUENT && ePrefs.getBoolean("favourites_hide_freq_called", false)) {
+            // The favourites only show the starred contacts then
+            selection = ContactNameIndex.SELECTION_STARRED;
+        }
+        if (mNameIndex != null && selection >= 0 && mNameIndex.isReady()) {
+            startCachedQuery(generation, selection);
+            return;
+        }
+        startProviderQuery(generation);
+    }
+
+    private static synchronized Handler getQueryWorker() {
+        if (sQueryWorker == null) {
+            HandlerThread thread = new HandlerThread("ContactsListQuery",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+
+            thread.start();
+            sQueryWorker = new Handler(thread.getLooper());
+        }
+        return sQueryWorker;
+    }
+
+    /**
+     * Reads the contacts of the mode from {@link ContactNameIndex} on the
+     * query worker. Falls back to the provider if the cache was invalidated
+     * meanwhile.
+     */
+    private void startCachedQuery(final int generation, final int selection) {
+        mQuerySample = new ContactsQueryStats.Sample(getModeName() + " cache", mQueryStartTime);
+        getQueryWorker().post(new Runnable() {
+            public void run() {
+                if (generation != mQueryGeneration) {
+                    // A newer query was started before this one's turn
+                    return;
+                }
+                ContactNameIndex.Matches matches = mNameIndex.match("", selection, null, null);
+
+                if (matches != null) {
+                    deliverQueryResult(generation, mNameIndex.getCursor(matches));
+                    return;
+                }
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        if (generation == mQueryGeneration) {
+                            startProviderQuery(generation);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Runs the two queries of {@link #queryStrequent(String)} on the query
+     * worker.
+     */
+    private void startStrequentQuery(final int generation) {
+        getQueryWorker().post(new Runnable() {
+            public void run() {
+                if (generation != mQueryGeneration) {
+                    return;
+                }
+                Cursor cursor = null;
+
+                try {
+                    cursor = queryStrequent(null);
+                } catch (SQLiteException e) {
+                    Log.w(TAG, "Exception while querying favorites", e);
+                }
+                deliverQueryResult(generation, cursor);
+            }
+        });
+    }
+
+    /**
+     * Queries the starred contacts and the most frequently contacted other
+     * ones, matching the filter if there is one. They are ordered like the
+     * provider's strequent query does, but read with two queries, so that
+     * the number of starred contacts is known without scanning the result.
+     */
+    StrequentCursor queryStrequent(String filter) {
+        final ContentResolver resolver = getContentResolver();
+        final Uri uri = getPeopleFilterUri(filter);
+        final String sortOrder = People.TIMES_CONTACTED + " DESC, "
+                + getSortOrder(STREQUENT_PROJECTION);
+
+        Cursor starred = resolver.query(uri, STREQUENT_PROJECTION, People.STARRED + "=1", null,
+                sortOrder);
+        Cursor frequent = null;
+
+        try {
+            frequent = copyFirstRows(resolver.query(uri, STREQUENT_PROJECTION,
+                    People.TIMES_CONTACTED + ">0 AND " + People.STARRED + "=0", null,
+                    sortOrder), STREQUENT_FREQUENT_LIMIT);
+        } finally {
+            if (frequent == null && starred != null) {
+                starred.close();
+            }
+        }
+        if (starred == null || frequent == null) {
+            return null;
+        }
+        return new StrequentCursor(starred, frequent);
+    }
+
+    /**
+     * Returns a copy of the first rows of the cursor, and closes it. The
+     * provider has no way to limit the rows of a query, short of putting a
+     * LIMIT clause in the sort order, which it isn't meant to take.
+     */
+    private static Cursor copyFirstRows(Cursor cursor, int limit) {
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            final int columnCount = cursor.getColumnCount();
+            MatrixCursor copy = new MatrixCursor(cursor.getColumnNames(),
+                    Math.min(cursor.getCount(), limit));
+            Object[] row = new Object[columnCount];
+
+            for (int count = 0; count < limit && cursor.moveToNext(); count++) {
+                for (int i = 0; i < columnCount; i++) {
+                    row[i] = cursor.getString(i);
+                }
+                copy.addRow(row);
+            }
+            return copy;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * The starred contacts followed by the frequent ones, knowing where the
+     * frequent ones start.
+     */
+    static final class StrequentCursor extends MergeCursor {
+        private final int mStarredCount;
+
+        /** Must be called on the querying thread, the counts fill the cursor windows */
+        StrequentCursor(Cursor starred, Cursor frequent) {
+            super(new Cursor[] { starred, frequent });
+            mStarredCount = starred.getCount();
+            frequent.getCount();
+        }
+
+        public int getStarredCount() {
+            return mStarredCount;
+        }
+    }
+
+    /**
+     * Returns a short name for the mode, used to tell the query plans apart.
+     */
+    private String getModeName() {
+        switch (mMode) {
+            case MODE_GROUP: return "group";
+            case MODE_ALL_CONTACTS: return "all";
+            case MODE_WITH_PHONES: return "with_phones";
+            case MODE_STARRED: return "starred";
+            case MODE_FREQUENT: return "frequent";
+            case MODE_STREQUENT: return "strequent";
+            case MODE_PICK_CONTACT: return "pick_contact";
+            case MODE_PICK_OR_CREATE_CONTACT: return "pick_or_create";
+            case MODE_INSERT_OR_EDIT_CONTACT: return "insert_or_edit";
+            case MODE_PICK_PHONE: return "pick_phone";
+            case MODE_PICK_POSTAL: return "pick_postal";
+            case MODE_QUERY: return "query";
+            case MODE_QUERY_PICK_TO_VIEW:
+                return mQueryMode == QUERY_MODE_MAILTO ? "query_mailto" : "query_tel";
+            default: return Integer.toHexString(mMode);
+        }
+    }
+
+    private void startProviderQuery(Integer generation) {
+        mQuerySample = new ContactsQueryStats.Sample(getModeName() + " provider",
+                mQueryStartTime);
 
         // Kick off the new query
         switch (mMode) {
             case MODE_GROUP:
-                mQueryHandler.startQuery(QUERY_TOKEN, null,
+                mQueryHandler.startQuery(QUERY_TOKEN, generation,
                         mGroupUri, CONTACTS_PROJECTION, null, null,
                         getSortOrder(CONTACTS_PROJECTION));
                 break;
@@ -1513,19 +1810,19 @@ public final class ContactsListActivity extends ListActivity
             case MODE_PICK_CONTACT:
             case MODE_PICK_OR_CREATE_CONTACT:
             case MODE_INSERT_OR_EDIT_CONTACT:
-                mQueryHandler.startQuery(QUERY_TOKEN, null, People.CONTENT_URI, CONTACTS_PROJECTION,
+                mQueryHandler.startQuery(QUERY_TOKEN, generation, People.CONTENT_URI, CONTACTS_PROJECTION,
                         null, null, getSortOrder(CONTACTS_PROJECTION));
                 break;
 
             case MODE_WITH_PHONES:
-                mQueryHandler.startQuery(QUERY_TOKEN, null, People.CONTENT_URI, CONTACTS_PROJECTION,
+                mQueryHandler.startQuery(QUERY_TOKEN, generation, People.CONTENT_URI, CONTACTS_PROJECTION,
                         People.PRIMARY_PHONE_ID + " IS NOT NULL", null,
                         getSortOrder(CONTACTS_PROJECTION));
                 break;
 
             case MODE_QUERY: {
                 mQuery = getIntent().getStringExtra(SearchManager.QUERY);
-                mQueryHandler.startQuery(QUERY_TOKEN, null, getPeopleFilterUri(mQuery),
+                mQueryHandler.startQuery(QUERY_TOKEN, generation, getPeopleFilterUri(mQuery),
                         CONTACTS_PROJECTION, null, null,
                         getSortOrder(CONTACTS_PROJECTION));
                 break;
@@ -1538,13 +1835,13 @@ public final class ContactsListActivity extends ListActivity
                     mQueryPersonIdIndex = SIMPLE_CONTACTS_PERSON_ID_INDEX;
                     Uri uri = Uri.withAppendedPath(People.WITH_EMAIL_OR_IM_FILTER_URI,
                             Uri.encode(mQueryData));
-                    mQueryHandler.startQuery(QUERY_TOKEN, null,
+                    mQueryHandler.startQuery(QUERY_TOKEN, generation,
                             uri, SIMPLE_CONTACTS_PROJECTION, null, null,
                             getSortOrder(CONTACTS_PROJECTION));
 
                 } else if (mQueryMode == QUERY_MODE_TEL) {
                     mQueryPersonIdIndex = PHONES_PERSON_ID_INDEX;
-                    mQueryHandler.startQuery(QUERY_TOKEN, null,
+                    mQueryHandler.startQuery(QUERY_TOKEN, generation,
                             Uri.withAppendedPath(Phones.CONTENT_FILTER_URL, mQueryData),
                             PHONES_PROJECTION, null, null,
                             getSortOrder(PHONES_PROJECTION));
@@ -1553,13 +1850,13 @@ public final class ContactsListActivity extends ListActivity
             }
 
             case MODE_STARRED:
-                mQueryHandler.startQuery(QUERY_TOKEN, null, People.CONTENT_URI,
+                mQueryHandler.startQuery(QUERY_TOKEN, generation, People.CONTENT_URI,
                         CONTACTS_PROJECTION,
                         People.STARRED + "=1", null, getSortOrder(CONTACTS_PROJECTION));
                 break;
 
             case MODE_FREQUENT:
-                mQueryHandler.startQuery(QUERY_TOKEN, null,
+                mQueryHandler.startQuery(QUERY_TOKEN, generation,
                         People.CONTENT_URI, CONTACTS_PROJECTION,
                         People.TIMES_CONTACTED + " > 0", null,
                         People.TIMES_CONTACTED + " DESC, " + getSortOrder(CONTACTS_PROJECTION));
@@ -1567,24 +1864,22 @@ public final class ContactsListActivity extends ListActivity
 
             case MODE_STREQUENT:
             	if (ePrefs.getBoolean("favourites_hide_freq_called", false)) {
-	            	mQueryHandler.startQuery(QUERY_TOKEN, null, People.CONTENT_URI,
+	            	mQueryHandler.startQuery(QUERY_TOKEN, generation, People.CONTENT_URI,
         	                CONTACTS_PROJECTION,
         	                People.STARRED + "=1", null, getSortOrder(CONTACTS_PROJECTION));
         	}
         	else {
-	                mQueryHandler.startQuery(QUERY_TOKEN, null,
-        	                Uri.withAppendedPath(People.CONTENT_URI, "strequent"), STREQUENT_PROJECTION,
-        	                null, null, null);
+	                startStrequentQuery(generation);
         	}
                 break;
 
             case MODE_PICK_PHONE:
-                mQueryHandler.startQuery(QUERY_TOKEN, null, Phones.CONTENT_URI, PHONES_PROJECTION,
+                mQueryHandler.startQuery(QUERY_TOKEN, generation, Phones.CONTENT_URI, PHONES_PROJECTION,
                         null, null, getSortOrder(PHONES_PROJECTION));
                 break;
 
             case MODE_PICK_POSTAL:
-                mQueryHandler.startQuery(QUERY_TOKEN, null, ContactMethods.CONTENT_URI,
+                mQueryHandler.startQuery(QUERY_TOKEN, generation, ContactMethods.CONTENT_URI,
                         CONTACT_METHODS_PROJECTION,
                         ContactMethods.KIND + "=" + Contacts.KIND_POSTAL, null,
                         getSortOrder(CONTACT_METHODS_PROJECTION));
@@ -1599,8 +1894,36 @@ public final class ContactsListActivity extends ListActivity
      * @return a cursor with the results of the filter
      */
     Cursor doFilter(String filter) {
+        return doFilter(filter, null);
+    }
+
+    /**
+     * Like {@link #doFilter(String)}, but gives up when the canceler says the
+     * result isn't wanted anymore, returning null.
+     */
+    Cursor doFilter(String filter, ContactNameIndex.Canceler canceler) {
         final ContentResolver resolver = getContentResolver();
 
+        // Answer from the name index when it covers the mode, the provider is
+        // only queried while the index is being built.
+        if (!TextUtils.isEmpty(filter) && mNameIndex != null) {
+            int selection = getNameIndexSelection();
+
+            if (selection >= 0) {
+                ContactNameIndex.Matches matches = mNameIndex.match(filter, selection,
+                        mLastMatches, canceler);
+
+                if (matches != null) {
+                    mLastMatches = matches;
+                    return mNameIndex.getCursor(matches);
+                }
+                if (canceler != null && canceler.isCanceled()) {
+                    return null;
+                }
+            }
+        }
+        mLastMatches = null;
+
         switch (mMode) {
             case MODE_GROUP: {
                 Uri uri;
@@ -1640,14 +1963,7 @@ public final class ContactsListActivity extends ListActivity
             }
 
             case MODE_STREQUENT: {
-                Uri uri;
-                if (!TextUtils.isEmpty(filter)) {
-                    uri = Uri.withAppendedPath(People.CONTENT_URI, "strequent/filter/"
-                            + Uri.encode(filter));
-                } else {
-                    uri = Uri.withAppendedPath(People.CONTENT_URI, "strequent");
-                }
-                return resolver.query(uri, STREQUENT_PROJECTION, null, null, null);
+                return queryStrequent(filter);
             }
 
             case MODE_PICK_PHONE: {
@@ -1665,6 +1981,27 @@ public final class ContactsListActivity extends ListActivity
         throw new UnsupportedOperationException("filtering not allowed in mode " + mMode);
     }
 
+    /**
+     * Returns the {@link ContactNameIndex} selection matching the contacts
+     * shown in the current mode, or -1 if the index can't filter them.
+     */
+    private int getNameIndexSelection() {
+        switch (mMode) {
+            case MODE_ALL_CONTACTS:
+            case MODE_PICK_CONTACT:
+            case MODE_PICK_OR_CREATE_CONTACT:
+            case MODE_INSERT_OR_EDIT_CONTACT:
+                return ContactNameIndex.SELECTION_ALL;
+
+            case MODE_WITH_PHONES:
+                return ContactNameIndex.SELECTION_WITH_PHONES;
+
+            case MODE_STARRED:
+                return ContactNameIndex.SELECTION_STARRED;
+        }
+        return -1;
+    }
+
     /**
      * Calls the currently selected list item.
      * @return true if the call was initiated, false otherwise
@@ -1796,28 +2133,83 @@ public final class ContactsListActivity extends ListActivity
         }
 
         @Override
-        protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
+        protected void onQueryComplete(int token, Object cookie, final Cursor cursor) {
             final ContactsListActivity activity = mActivity.get();
-            if (activity != null && !activity.isFinishing()) {
-                activity.mAdapter.setLoading(false);
-                activity.getListView().clearTextFilter();
-                activity.mAdapter.changeCursor(cursor);
-
-                // Now that the cursor is populated again, it's possible to restore the list state
-                if (activity.mListState != null) {
-                    activity.mList.onRestoreInstanceState(activity.mListState);
-                    if (activity.mListHasFocus) {
-                        activity.mList.requestFocus();
-                    }
-                    activity.mListHasFocus = false;
-                    activity.mListState = null;
+            if (activity != null && !activity.isFinishing()
+                    && cookie.equals(activity.mQueryGeneration)) {
+                if (cursor == null) {
+                    activity.onQueryCursorReady(null, ContactSectionIndex.EMPTY);
+                    return;
                 }
-            } else {
+
+                // Compute the sections before the list gets the cursor, so
+                // that fast scrolling never has to move it.
+                final int generation = (Integer) cookie;
+
+                getQueryWorker().post(new Runnable() {
+                    public void run() {
+                        if (generation != activity.mQueryGeneration) {
+                            cursor.close();
+                            return;
+                        }
+                        activity.deliverQueryResult(generation, cursor);
+                    }
+                });
+            } else if (cursor != null) {
                 cursor.close();
             }
         }
     }
 
+    /**
+     * Computes the sections of a query result and then shows it, unless a
+     * newer query was started meanwhile. Runs on the query worker.
+     */
+    private void deliverQueryResult(final int generation, final Cursor cursor) {
+        final ContactSectionIndex sectionIndex = mAdapter.buildSectionIndex(cursor);
+
+        mHandler.post(new Runnable() {
+            public void run() {
+                if (generation == mQueryGeneration && !isFinishing()) {
+                    onQueryCursorReady(cursor, sectionIndex);
+                } else if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Shows the result of {@link #startQuery()}, once its sections are known.
+     */
+    private void onQueryCursorReady(Cursor cursor, ContactSectionIndex sectionIndex) {
+        if (mQuerySample != null
+                && mQuerySample.ready(cursor != null ? cursor.getCount() : 0)) {
+            mQuerySample = null;
+        }
+        mAdapter.setLoading(false);
+        getListView().clearTextFilter();
+        mAdapter.changeCursor(cursor, sectionIndex);
+
+        // Now that the cursor is populated again, it's possible to restore the list state
+        if (mListState != null) {
+            mList.onRestoreInstanceState(mListState);
+            if (mListHasFocus) {
+                mList.requestFocus();
+            }
+            mListHasFocus = false;
+            mListState = null;
+        }
+    }
+
+    /** Row showing only the name, laid out as inflated */
+    private static final int VIEW_TYPE_PLAIN = 0;
+    /** Row with a label below the name */
+    private static final int VIEW_TYPE_LABEL = 1;
+    /** Row with the number below the name */
+    private static final int VIEW_TYPE_NO_LABEL = 2;
+    private static final int VIEW_TYPE_COUNT = 3;
+
     final static class ContactListItemCache {
         //Wysie_Soh: Sections stuff
         public View header;
@@ -1837,16 +2229,30 @@ public final class ContactsListActivity extends ListActivity
     }
 
     private final class ContactItemListAdapter extends ResourceCursorAdapter
-            implements SectionIndexer, View.OnClickListener {
-        private SectionIndexer mIndexer;
+            implements SectionIndexer, View.OnClickListener, AbsListView.OnScrollListener {
+        /** Sections of the current cursor, computed when it was loaded */
+        private ContactSectionIndex mSectionIndex = ContactSectionIndex.EMPTY;
         private String mAlphabet;
         private boolean mLoading = true;
         private CharSequence mUnknownNameText;
         private CharSequence[] mLocalizedLabels;
         private boolean mDisplayPhotos = false;
-        private SparseArray<SoftReference<Bitmap>> mBitmapCache = null;
+        private ContactPhotoLoader mPhotoLoader = null;
+        private ContactFilter mFilter;
+        private final BindProbe mBindProbe = new BindProbe(TAG, "ContactItemListAdapter");
+
+        // Preferences, read once per data change
+        private boolean mShowNumber;
+        private boolean mShowDialButton;
+        private boolean mShowLabel;
+        private boolean mShowPhoto;
         private int mFrequentSeparatorPos = ListView.INVALID_POSITION;        
-        private int[] mSectionPositions;
+
+        /**
+         * View type + 1 of each position, 0 if not known yet, so that layout
+         * passes don't have to move the cursor. Reset when the data changes.
+         */
+        private byte[] mViewTypes;
 
         public ContactItemListAdapter(Context context) {
             super(context, R.layout.contacts_list_item, null, false);        
@@ -1876,30 +2282,30 @@ public final class ContactsListActivity extends ListActivity
             if ((mMode & MODE_MASK_SHOW_PHOTOS) == MODE_MASK_SHOW_PHOTOS) {
                 mDisplayPhotos = true;
                 setViewResource(R.layout.contacts_list_item_photo);
-                mBitmapCache = new SparseArray<SoftReference<Bitmap>>();
+                mPhotoLoader = new ContactPhotoLoader(context, R.drawable.ic_contact_list_picture);
             }
             if (mMode == MODE_STREQUENT || mMode == MODE_FREQUENT) {
                 mDisplaySectionHeaders = false;
                 mFavTab = true;
             }
+            loadPrefs();
 
         }
 
-        private SectionIndexer getNewIndexer(Cursor cursor) {
-            if (Locale.getDefault().getLanguage().equals(Locale.JAPAN.getLanguage())) {
-                return new JapaneseContactListIndexer(cursor, SORT_STRING_INDEX);
-            } else {
-                return new AlphabetIndexer(cursor, NAME_COLUMN_INDEX, mAlphabet);
-            }
+        /**
+         * Callback on the UI thread when the content observer on the backing cursor fires.
+         * Changes are coalesced, see {@link ContactsListActivity#scheduleRequery()}.
+         */
+        @Override
+        protected void onContentChanged() {               
+            scheduleRequery();
         }
 
         /**
-         * Callback on the UI thread when the content observer on the backing cursor fires.
          * Instead of calling requery we need to do an async query so that the requery doesn't
          * block the UI thread for a long time.
          */
-        @Override
-        protected void onContentChanged() {               
+        public void requeryNow() {
             CharSequence constraint = getListView().getTextFilter();
             if (!TextUtils.isEmpty(constraint)) {
                 // Reset the filter state then start an async filter operation
@@ -1931,13 +2337,100 @@ public final class ContactsListActivity extends ListActivity
             }
         }
 
+        /**
+         * Reads the preferences used while binding, so that binding a row
+         * doesn't have to. Called whenever the data changes. Returns true if
+         * any of them changed.
+         */
+        boolean loadPrefs() {
+            final boolean showNumber =
+                    (ePrefs.getBoolean("contacts_show_number", true) && mContactsTab)
+                    || (ePrefs.getBoolean("favs_show_number", true) && mFavTab);
+            final boolean showDialButton =
+                    (ePrefs.getBoolean("contacts_show_dial_button", true) && mContactsTab)
+                    || (ePrefs.getBoolean("favs_show_dial_button", true) && mFavTab);
+            final boolean showLabel =
+                    (ePrefs.getBoolean("contacts_show_label", true) && mContactsTab)
+                    || (ePrefs.getBoolean("favs_show_label", true) && mFavTab);
+            final boolean showPhoto = mDisplayPhotos
+                    && ((ePrefs.getBoolean("contacts_show_pic", true) && mContactsTab)
+                    || (ePrefs.getBoolean("favs_show_pic", true) && mFavTab));
+            boolean displaySectionHeaders = mDisplaySectionHeaders;
+
+            //Wysie_Soh: Decide whether to display headers or not based on preferences            
+            if (mContactsTab) {
+                displaySectionHeaders =
+                        ePrefs.getBoolean("contacts_show_alphabetical_separators", true);
+            }
+
+            final boolean changed = showNumber != mShowNumber
+                    || showDialButton != mShowDialButton
+                    || showLabel != mShowLabel
+                    || showPhoto != mShowPhoto
+                    || displaySectionHeaders != mDisplaySectionHeaders;
+
+            mShowNumber = showNumber;
+            mShowDialButton = showDialButton;
+            mShowLabel = showLabel;
+            mShowPhoto = showPhoto;
+            mDisplaySectionHeaders = displaySectionHeaders;
+            return changed;
+        }
+
+        @Override
+        public void notifyDataSetChanged() {
+            loadPrefs();
+            mViewTypes = null;
+            super.notifyDataSetChanged();
+        }
+
+        @Override
+        public int getViewTypeCount() {
+            return VIEW_TYPE_COUNT;
+        }
+
         @Override
         public int getItemViewType(int position) {
             if (position == mFrequentSeparatorPos) {
                 // We don't want the separator view to be recycled.
                 return IGNORE_ITEM_VIEW_TYPE;
             }
-            return super.getItemViewType(position);
+            if (mQueryMode != QUERY_MODE_NONE) {
+                // Only the name is shown
+                return VIEW_TYPE_PLAIN;
+            }
+            if (!mDataValid) {
+                return VIEW_TYPE_PLAIN;
+            }
+
+            final int count = getCount();
+            if (mViewTypes == null || mViewTypes.length != count) {
+                mViewTypes = new byte[count];
+            }
+            if (position >= 0 && position < count && mViewTypes[position] != 0) {
+                return mViewTypes[position] - 1;
+            }
+
+            // Looked up once per position, counted along with the binds
+            mBindProbe.start();
+            int viewType = getViewType(position);
+            mBindProbe.endPart();
+
+            if (position >= 0 && position < count) {
+                mViewTypes[position] = (byte) (viewType + 1);
+            }
+            return viewType;
+        }
+
+        /**
+         * Returns the view type of a row, moving the cursor to it.
+         */
+        private int getViewType(int position) {
+            if (!mCursor.moveToPosition(getRealPosition(position))) {
+                return VIEW_TYPE_PLAIN;
+            }
+            return mShowLabel && !mCursor.isNull(TYPE_COLUMN_INDEX)
+                    ? VIEW_TYPE_LABEL : VIEW_TYPE_NO_LABEL;
         }
 
         @Override
@@ -1947,6 +2440,10 @@ public final class ContactsListActivity extends ListActivity
                         "this should only be called when the cursor is valid");
             }      
 
+            if (mQuerySample != null && mQuerySample.firstBind()) {
+                mQuerySample = null;
+            }
+
             // Handle the separator specially
             if (position == mFrequentSeparatorPos) {
                 LayoutInflater inflater =
@@ -1961,9 +2458,16 @@ public final class ContactsListActivity extends ListActivity
                 throw new IllegalStateException("couldn't move cursor to position " + position);
             }
 
+            mBindProbe.start();
+
             View v;
             if (convertView == null) {
                 v = newView(mContext, mCursor, parent);
+                // Views are only recycled within their type, so the layout
+                // of the type is set up once
+                if (mQueryMode == QUERY_MODE_NONE) {
+                    setupLayout(v, getViewType(position));
+                }
             } else {
                 v = convertView;
             }
@@ -1971,20 +2475,43 @@ public final class ContactsListActivity extends ListActivity
             //Wysie_Soh: if mMode == MODE_STREQUENT or MODE_FREQUENT, mDisplaySectionHeaders is already set to false
             //Doing so means that the section separators will be shown in all other mModes. If I'm not wrong,
             //The default Eclair Contacts only shows the section separators in "Contacts" tab mode.
-            //if (!(mMode == MODE_STREQUENT || mMode == MODE_FREQUENT)) {
-            //    mDisplaySectionHeaders = ePrefs.getBoolean("contacts_show_alphabetical_separators", true);
-            //}
-            
-            //Wysie_Soh: Decide whether to display headers or not based on preferences            
-            if (mContactsTab) {
-                mDisplaySectionHeaders = ePrefs.getBoolean("contacts_show_alphabetical_separators", true);
-            }            
             
             bindView(v, mContext, mCursor);
             bindSectionHeader(v, realPosition, mDisplaySectionHeaders);
-            
+
+            mBindProbe.end();
             return v;
         }
+
+        /**
+         * Wysie_Soh: Sets the layout rules of the name and number for the view
+         * type, depending on whether the row has a label.
+         */
+        private void setupLayout(View view, int viewType) {
+            if (viewType == VIEW_TYPE_PLAIN) {
+                return;
+            }
+
+            final ContactListItemCache cache = (ContactListItemCache) view.getTag();
+            RelativeLayout.LayoutParams nameLayout =
+                    (RelativeLayout.LayoutParams) cache.nameView.getLayoutParams();
+            RelativeLayout.LayoutParams numberLayout =
+                    (RelativeLayout.LayoutParams) cache.numberView.getLayoutParams();
+
+            if (viewType == VIEW_TYPE_LABEL) {
+                nameLayout.addRule(RelativeLayout.ABOVE, R.id.label);
+                numberLayout.addRule(RelativeLayout.ALIGN_PARENT_BOTTOM, 0);
+                numberLayout.addRule(RelativeLayout.ALIGN_BASELINE, R.id.label);
+                numberLayout.setMargins(5, 0, 0, 0);
+            } else {
+                nameLayout.addRule(RelativeLayout.ABOVE, R.id.number);
+                numberLayout.addRule(RelativeLayout.ALIGN_PARENT_BOTTOM);
+                numberLayout.addRule(RelativeLayout.ALIGN_BASELINE, 0);
+                numberLayout.setMargins(0, -10, 0, 8);
+            }
+            cache.nameView.setLayoutParams(nameLayout);
+            cache.numberView.setLayoutParams(numberLayout);
+        }
         
         //Wysie_Soh: cache.divider makes the line between each contact thicker, investigating
         private void bindSectionHeader(View view, int position, boolean displaySectionHeaders) {
@@ -1998,7 +2525,7 @@ public final class ContactsListActivity extends ListActivity
             } else {
                 final int section = getSectionForPosition(position);
                 if (getPositionForSection(section) == position) {
-                    String title = mIndexer.getSections()[section].toString().trim();
+                    String title = mSectionIndex.getSections()[section].toString().trim();
                     if (!TextUtils.isEmpty(title)) {
                         cache.headerText.setText(title);
                         cache.header.setVisibility(View.VISIBLE);
@@ -2081,21 +2608,15 @@ public final class ContactsListActivity extends ListActivity
             // Set the phone number
             TextView numberView = cache.numberView;
             TextView labelView = cache.labelView;
-            View divView = null;
-            View callView = null;
-            
-            divView = cache.dividerView;
-            callView = cache.callView;
-            
-            RelativeLayout.LayoutParams newNameLayout = (RelativeLayout.LayoutParams) cache.nameView.getLayoutParams();
-            RelativeLayout.LayoutParams newNumberLayout = (RelativeLayout.LayoutParams) numberView.getLayoutParams();
+            View divView = cache.dividerView;
+            View callView = cache.callView;
             
             cursor.copyStringToBuffer(NUMBER_COLUMN_INDEX, cache.numberBuffer);
             size = cache.numberBuffer.sizeCopied;
             
             if (size != 0) {
                 
-                if ((ePrefs.getBoolean("contacts_show_number", true) && mContactsTab) || (ePrefs.getBoolean("favs_show_number", true) && mFavTab)) {
+                if (mShowNumber) {
                     numberView.setText(cache.numberBuffer.data, 0, size);                              
                     numberView.setVisibility(View.VISIBLE);
                 }
@@ -2105,8 +2626,7 @@ public final class ContactsListActivity extends ListActivity
                 
                 labelView.setVisibility(View.VISIBLE);
                 
-                if ((ePrefs.getBoolean("contacts_show_dial_button", true) && mContactsTab) ||
-                    (ePrefs.getBoolean("favs_show_dial_button", true) && mFavTab)) {
+                if (mShowDialButton) {
                 	callView.setTag(new String(cache.numberBuffer.data, 0, size)); //Wysie_Soh: Set tag to green dial button
                 	callView.setVisibility(View.VISIBLE);
                 	divView.setVisibility(View.VISIBLE);
@@ -2123,9 +2643,8 @@ public final class ContactsListActivity extends ListActivity
                 divView.setVisibility(View.GONE);
             }
 
-            // Set the label
-            if (!cursor.isNull(TYPE_COLUMN_INDEX) && ((ePrefs.getBoolean("contacts_show_label", true) && mContactsTab) ||
-                    (ePrefs.getBoolean("favs_show_label", true) && mFavTab))) {
+            // Set the label. The layout for it was set up with the view type.
+            if (mShowLabel && !cursor.isNull(TYPE_COLUMN_INDEX)) {
                 int type = cursor.getInt(TYPE_COLUMN_INDEX);
 
                 if (type != People.Phones.TYPE_CUSTOM) {
@@ -2139,28 +2658,9 @@ public final class ContactsListActivity extends ListActivity
                     // Don't check size, if it's zero just don't show anything
                     labelView.setText(cache.labelBuffer.data, 0, cache.labelBuffer.sizeCopied);
                 }
-                
-                //Wysie_Soh: Set layout rules programmatically                    
-                newNameLayout.addRule(RelativeLayout.ABOVE, R.id.label);
-                newNumberLayout.addRule(RelativeLayout.ALIGN_PARENT_BOTTOM, 0);
-                newNumberLayout.addRule(RelativeLayout.ALIGN_BASELINE, R.id.label);
-                newNumberLayout.setMargins(5, 0, 0, 0);
-                
-                cache.nameView.setLayoutParams(newNameLayout);
-                numberView.setLayoutParams(newNumberLayout);
-                    
             } else {
                 // There is no label, hide the the view
                 labelView.setVisibility(View.GONE);
-                
-                //Wysie_Soh: Set layout rules programmatically                    
-                newNameLayout.addRule(RelativeLayout.ABOVE, R.id.number);
-                newNumberLayout.addRule(RelativeLayout.ALIGN_PARENT_BOTTOM);
-                newNumberLayout.addRule(RelativeLayout.ALIGN_BASELINE, 0);
-                newNumberLayout.setMargins(0, -10, 0, 8);
-                
-                cache.nameView.setLayoutParams(newNameLayout);
-                numberView.setLayoutParams(newNumberLayout);
             }
 
             // Set the proper icon (star or presence or nothing)
@@ -2180,44 +2680,9 @@ public final class ContactsListActivity extends ListActivity
             }
 
             // Set the photo, if requested
-            if (mDisplayPhotos && ((ePrefs.getBoolean("contacts_show_pic", true) && mContactsTab) ||
-                (ePrefs.getBoolean("favs_show_pic", true) && mFavTab))) {
-                Bitmap photo = null;
-
-                // Look for the cached bitmap
-                int pos = cursor.getPosition();
-                SoftReference<Bitmap> ref = mBitmapCache.get(pos);
-                if (ref != null) {
-                    photo = ref.get();
-                }
-
-                if (photo == null) {
-                    // Bitmap cache miss, decode it from the cursor
-                    if (!cursor.isNull(PHOTO_COLUMN_INDEX)) {
-                        try {
-                            byte[] photoData = cursor.getBlob(PHOTO_COLUMN_INDEX);
-                            photo = BitmapFactory.decodeByteArray(photoData, 0,
-                                    photoData.length);
-                            mBitmapCache.put(pos, new SoftReference<Bitmap>(photo));
-                            //Geesun
-                            if(photo == null) {
-                                int id = cursor.getInt(ID_COLUMN_INDEX);
-                                Uri uri = ContentUris.withAppendedId(People.CONTENT_URI, id);
-                                photo = People.loadContactPhoto(context, uri, R.drawable.ic_contact_list_picture, null);
-                            }
-                        } catch (OutOfMemoryError e) {
-                            // Not enough memory for the photo, use the default one instead
-                            photo = null;
-                        }
-                    }
-                }
-
-                // Bind the photo, or use the fallback no photo resource
-                if (photo != null) {
-                    cache.photoView.setImageBitmap(photo);
-                } else {
-                    cache.photoView.setImageResource(R.drawable.ic_contact_list_picture);
-                }
+            if (mShowPhoto) {
+                // The photo is loaded in the background, keyed by person id
+                mPhotoLoader.loadPhoto(cache.photoView, cursor.getLong(ID_COLUMN_INDEX));
                 
                 cache.photoView.setVisibility(View.VISIBLE);
             }
@@ -2232,62 +2697,71 @@ public final class ContactsListActivity extends ListActivity
             }
         }
 
+        /**
+         * Computes the sections of a cursor that isn't shown yet. May be called
+         * from any thread.
+         */
+        public ContactSectionIndex buildSectionIndex(Cursor cursor) {
+            if (mMode == MODE_STREQUENT) {
+                // The favourites have a single section
+                return ContactSectionIndex.EMPTY;
+            }
+            return ContactSectionIndex.build(cursor, mAlphabet);
+        }
+
         @Override
         public void changeCursor(Cursor cursor) {
-            // Get the split between starred and frequent items, if the mode is strequent
+            changeCursor(cursor, null);
+        }
+
+        /**
+         * Shows a cursor whose sections were computed by
+         * {@link #buildSectionIndex(Cursor)}, or null to compute them now.
+         */
+        public void changeCursor(Cursor cursor, ContactSectionIndex sectionIndex) {
+            if (sectionIndex == null) {
+                sectionIndex = buildSectionIndex(cursor);
+            }
+
+            // Get the split between starred and frequent items, if the mode is strequent.
+            // Only the two part strequent cursor has frequent items.
             mFrequentSeparatorPos = ListView.INVALID_POSITION;
-            if (cursor != null && cursor.getCount() > 0 && mMode == MODE_STREQUENT) {
-                cursor.move(-1);
-                for (int i = 0; cursor.moveToNext(); i++) {
-                    int starred = cursor.getInt(STARRED_COLUMN_INDEX);
-                    if (starred == 0) {
-                        if (i > 0) {
-                            // Only add the separator when there are starred items present
-                            mFrequentSeparatorPos = i;
-                        }
-                        break;
-                    }
+            if (cursor instanceof StrequentCursor && mMode == MODE_STREQUENT) {
+                int starredCount = ((StrequentCursor) cursor).getStarredCount();
+
+                // Only add the separator when there are starred and frequent items present
+                if (starredCount > 0 && cursor.getCount() > starredCount) {
+                    mFrequentSeparatorPos = starredCount;
                 }
             }
 
+            mViewTypes = null;
             super.changeCursor(cursor);
 
-            // Update the indexer for the fast scroll widget
-            updateIndexer(cursor);
+            // Update the sections for the fast scroll widget
+            mSectionIndex = sectionIndex;
+        }
 
-            // Clear the photo bitmap cache, if there is one
-            if (mBitmapCache != null) {
-                mBitmapCache.clear();
-            }
+        public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                int totalItemCount) {
         }
 
-        private void updateIndexer(Cursor cursor) {
-            if (mIndexer == null) {
-                mIndexer = getNewIndexer(cursor);
-            } else {
-                if (Locale.getDefault().equals(Locale.JAPAN)) {
-                    if (mIndexer instanceof JapaneseContactListIndexer) {
-                        ((JapaneseContactListIndexer)mIndexer).setCursor(cursor);
-                    } else {
-                        mIndexer = getNewIndexer(cursor);
-                    }
-                } else {
-                    if (mIndexer instanceof AlphabetIndexer) {
-                        ((AlphabetIndexer)mIndexer).setCursor(cursor);
-                    } else {
-                        mIndexer = getNewIndexer(cursor);
-                    }
-                }
+        public void onScrollStateChanged(AbsListView view, int scrollState) {
+            if (mPhotoLoader == null) {
+                return;
             }
-            
-            int sectionCount = mIndexer.getSections().length;
-            if (mSectionPositions == null || mSectionPositions.length != sectionCount) {
-                mSectionPositions = new int[sectionCount];
+            // Don't load photos of rows flying by
+            if (scrollState == OnScrollListener.SCROLL_STATE_FLING) {
+                mPhotoLoader.pause();
+            } else {
+                mPhotoLoader.resume();
             }
-            for (int i = 0; i < sectionCount; i++) {
-                mSectionPositions[i] = ListView.INVALID_POSITION;
+        }
+
+        public void stopPhotoLoader() {
+            if (mPhotoLoader != null) {
+                mPhotoLoader.stop();
             }
-            
         }
 
         /**
@@ -2299,67 +2773,96 @@ public final class ContactsListActivity extends ListActivity
             return doFilter(constraint.toString());
         }
 
-        public Object [] getSections() {
-            if (mMode == MODE_STREQUENT) {
-                return new String[] { " " };
-            } else {
-                return mIndexer.getSections();
-           }
+        @Override
+        public Filter getFilter() {
+            if (mFilter == null) {
+                mFilter = new ContactFilter();
+            }
+            return mFilter;
         }
 
-        public int getPositionForSection(int sectionIndex) {
-            if (mMode == MODE_STARRED) {
-                return -1;
+        /** A cursor along with its sections */
+        private final class IndexedCursor {
+            final Cursor cursor;
+            final ContactSectionIndex sectionIndex;
+
+            IndexedCursor(Cursor cursor, ContactSectionIndex sectionIndex) {
+                this.cursor = cursor;
+                this.sectionIndex = sectionIndex;
             }
+        }
 
-            if (sectionIndex < 0 || sectionIndex >= mSectionPositions.length) {
-                return -1;
+        /**
+         * Filters like the default cursor filter, but drops the filters that
+         * were superseded by a newer one while running.
+         */
+        private final class ContactFilter extends Filter {
+            /** Constraint of the most recent request. Read by the filter thread. */
+            private volatile String mLatestConstraint;
+
+            @Override
+            public void filter(CharSequence constraint, FilterListener listener) {
+                // Normalized like performFiltering() does
+                mLatestConstraint = constraint != null ? constraint.toString() : "";
+                super.filter(constraint, listener);
             }
 
-            if (mIndexer == null) {
-                Cursor cursor = mAdapter.getCursor();
-                if (cursor == null) {
-                    // No cursor, the section doesn't exist so just return 0
-                    return 0;
+            @Override
+            public CharSequence convertResultToString(Object resultValue) {
+                return convertToString((Cursor) resultValue);
+            }
+
+            @Override
+            protected FilterResults performFiltering(CharSequence constraint) {
+                final String filter = constraint != null ? constraint.toString() : "";
+                final ContactNameIndex.Canceler canceler = new ContactNameIndex.Canceler() {
+                    public boolean isCanceled() {
+                        return !filter.equals(mLatestConstraint);
+                    }
+                };
+
+                Cursor cursor = doFilter(filter, canceler);
+                FilterResults results = new FilterResults();
+
+                if (cursor != null && canceler.isCanceled()) {
+                    // A newer filter is queued, don't bother showing this one
+                    cursor.close();
+                    cursor = null;
+                }
+                if (cursor != null) {
+                    results.count = cursor.getCount();
+                    results.values = new IndexedCursor(cursor, buildSectionIndex(cursor));
                 }
-                mIndexer = getNewIndexer(cursor);
+                return results;
             }
 
-            int position = mSectionPositions[sectionIndex];
-            if (position == ListView.INVALID_POSITION) {
-                position = mSectionPositions[sectionIndex] =
-                        mIndexer.getPositionForSection(sectionIndex);
+            @Override
+            protected void publishResults(CharSequence constraint, FilterResults results) {
+                IndexedCursor result = (IndexedCursor) results.values;
+
+                if (result != null && result.cursor != getCursor()) {
+                    changeCursor(result.cursor, result.sectionIndex);
+                }
             }
+        }
 
-            return position;
+        public Object [] getSections() {
+            if (mMode == MODE_STREQUENT) {
+                return new String[] { " " };
+            } else {
+                return mSectionIndex.getSections();
+           }
         }
 
-        public int getSectionForPosition(int position) {
-            // The current implementations of SectionIndexers (specifically the Japanese indexer)
-            // only work in one direction: given a section they can calculate the position.
-            // Here we are using that existing functionality to do the reverse mapping. We are
-            // performing binary search in the mSectionPositions array, which itself is populated
-            // lazily using the "forward" mapping supported by the indexer.
-
-            int start = 0;
-            int end = mSectionPositions.length;
-            while (start != end) {
-
-                // We are making the binary search slightly asymmetrical, because the
-                // user is more likely to be scrolling the list from the top down.
-                int pivot = start + (end - start) / 4;
-
-                int value = getPositionForSection(pivot);
-                if (value <= position) {
-                    start = pivot + 1;
-                } else {
-                    end = pivot;
-                }
+        public int getPositionForSection(int sectionIndex) {
+            if (mMode == MODE_STARRED) {
+                return -1;
             }
+            return mSectionIndex.getPositionForSection(sectionIndex);
+        }
 
-            // The variable "start" cannot be 0, as long as the indexer is implemented properly
-            // and actually maps position = 0 to section = 0
-            return start - 1;
+        public int getSectionForPosition(int position) {
+            return mSectionIndex.getSectionForPosition(position);
         }
 
         @Override
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * Keeps statistics about the queries of {@link ContactsListActivity} for the
+ * life of the process, per query plan: how long it takes until the cursor is
+ * ready, how many rows it has, and how long until its first row is bound.
+ * With "adb shell setprop log.tag.ContactsQueryStats VERBOSE" every query is
+ * logged, and the statistics are dumped to the log whenever a list stops.
+ */
+final class ContactsQueryStats {
+    private static final String TAG = "ContactsQueryStats";
+
+    private static final HashMap<String, Entry> sEntries = new HashMap<String, Entry>();
+
+    /** The totals of one plan */
+    private static final class Entry {
+        int queries;
+        long latency;
+        long maxLatency;
+        long rows;
+        int bound;
+        long firstBind;
+        long maxFirstBind;
+    }
+
+    /**
+     * A query being run. Must only be used from the UI thread.
+     */
+    static final class Sample {
+        private final String mPlan;
+        private final long mStartTime;
+        private long mLatency = -1;
+        private int mRows;
+
+        /**
+         * @param plan the mode and the way it is queried
+         * @param startTime when the query was requested, in
+         * {@link SystemClock#uptimeMillis()}
+         */
+        Sample(String plan, long startTime) {
+            mPlan = plan;
+            mStartTime = startTime;
+        }
+
+        /**
+         * Called when the cursor is handed to the list. Returns true if the
+         * sample is complete, as there are no rows to bind.
+         */
+        boolean ready(int rows) {
+            mLatency = SystemClock.uptimeMillis() - mStartTime;
+            mRows = rows;
+            if (rows == 0) {
+                record(this, -1);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Called when a row is bound. Returns true if the sample is complete,
+         * false if the cursor isn't ready yet and the rows bound are from the
+         * previous one.
+         */
+        boolean firstBind() {
+            if (mLatency < 0) {
+                return false;
+            }
+            record(this, SystemClock.uptimeMillis() - mStartTime);
+            return true;
+        }
+    }
+
+    private ContactsQueryStats() {
+    }
+
+    static boolean isLoggable() {
+        return Log.isLoggable(TAG, Log.VERBOSE);
+    }
+
+    private static void record(Sample sample, long firstBind) {
+        synchronized (sEntries) {
+            Entry entry = sEntries.get(sample.mPlan);
+
+            if (entry == null) {
+                entry = new Entry();
+                sEntries.put(sample.mPlan, entry);
+            }
+            entry.queries++;
+            entry.latency += sample.mLatency;
+            entry.maxLatency = Math.max(entry.maxLatency, sample.mLatency);
+            entry.rows += sample.mRows;
+            if (firstBind >= 0) {
+                entry.bound++;
+                entry.firstBind += firstBind;
+                entry.maxFirstBind = Math.max(entry.maxFirstBind, firstBind);
+            }
+        }
+        if (isLoggable()) {
+            Log.v(TAG, sample.mPlan + ": " + sample.mLatency + "ms, " + sample.mRows
+                    + " rows, first bind " + (firstBind >= 0 ? firstBind + "ms" : "none"));
+        }
+    }
+
+    /**
+     * Logs the statistics of every plan, if enabled.
+     */
+    static void dump() {
+        if (!isLoggable()) {
+            return;
+        }
+
+        synchronized (sEntries) {
+            ArrayList<String> plans = new ArrayList<String>(sEntries.keySet());
+
+            Collections.sort(plans);
+            Log.v(TAG, "plan: queries, latency avg/max, rows avg, first bind avg/max");
+            for (String plan : plans) {
+                Entry entry = sEntries.get(plan);
+
+                Log.v(TAG, plan + ": " + entry.queries + ", "
+                        + (entry.latency / entry.queries) + "/" + entry.maxLatency + "ms, "
+                        + (entry.rows / entry.queries) + ", "
+                        + (entry.bound == 0 ? "-" : (entry.firstBind / entry.bound) + "/"
+                                + entry.maxFirstBind + "ms"));
+            }
+        }
+    }
+}
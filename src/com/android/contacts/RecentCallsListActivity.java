@@ -69,7 +69,9 @@ import android.view.ViewConfiguration;
 import android.view.ViewGroup;
 import android.view.ViewTreeObserver;
 import android.view.ContextMenu.ContextMenuInfo;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
+import android.widget.BaseAdapter;
 import android.widget.Button;
 import android.widget.ImageView;
 import android.widget.ListView;
@@ -81,16 +83,12 @@ import com.android.internal.telephony.CallerInfo;
 import com.android.internal.telephony.ITelephony;
 
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.Locale;
 import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
 
 // Geesun 
 import android.view.LayoutInflater;
-import android.widget.ArrayAdapter;
-import java.util.ArrayList;
-import java.util.List;
 import android.widget.Toast;
 
 
@@ -98,7 +96,7 @@ import android.widget.Toast;
  * Displays a list of call log entries.
  */
 public class RecentCallsListActivity extends ListActivity
-        implements View.OnCreateContextMenuListener {
+        implements View.OnCreateContextMenuListener, AbsListView.OnScrollListener {
     private static final String TAG = "RecentCallsList";
 
     /** The projection to use when querying the call log table */
@@ -144,12 +142,12 @@ public class RecentCallsListActivity extends ListActivity
     // RecentCallsAdapter mAdapter;
     // Geesun
     RecentCallsArrayAdapter mArrayAdapter;
-    ArrayList<RecentCallsInfo> mListCallLogs = null;   
+    private CallLogAggregator mAggregator;
+    private ContactInfoCache mContactInfoCache;
     private SharedPreferences prefs;
     
-    private static int totalIncoming = 0;
-    private static int totalOutgoing = 0;
-    
+    private CallLogStats mCallLogStats;
+
     private QueryHandler mQueryHandler;
     String mVoiceMailNumber;
 
@@ -166,6 +164,10 @@ public class RecentCallsListActivity extends ListActivity
 
 
     public static final class RecentCallsListItemViews {
+        static final int LAYOUT_UNKNOWN = 0;
+        static final int LAYOUT_LABEL = 1;
+        static final int LAYOUT_NO_LABEL = 2;
+
         TextView line1View;
         TextView labelView;
         TextView numberView;
@@ -175,6 +177,8 @@ public class RecentCallsListActivity extends ListActivity
         View callView;
         ImageView photoView;
         TextView countView;
+        /** Layout rules currently set on the name and number views */
+        int layout = LAYOUT_UNKNOWN;
     }
 
 
@@ -188,7 +192,7 @@ public class RecentCallsListActivity extends ListActivity
 
 
     // Geesun 
-    final class RecentCallsInfo {
+    static final class RecentCallsInfo {
         public String number;
         public int type;
         public String name;
@@ -198,9 +202,43 @@ public class RecentCallsListActivity extends ListActivity
         public int duration;
         public int count;
         public int personId;
+        /** Cursor position of the call shown for this entry */
+        int row = -1;
+        /** Cursor position of the call the cached name comes from */
+        int nameRow = -1;
+
+        // Text cached by the adapter, so that binding doesn't allocate
+        String formattedNumber;
+        String displayNumber;
+        String countText;
+        CharSequence dateText;
+        /** Format of {@link #dateText}, or null for a relative time */
+        String dateFormat;
+        /** Minute {@link #dateText} was computed at, for relative times */
+        long dateMinute;
+        /** Whether a call log update was queued for this entry */
+        boolean updateQueued;
+
         RecentCallsInfo() {
             count = 1;
         }
+
+        RecentCallsInfo copy() {
+            RecentCallsInfo info = new RecentCallsInfo();
+
+            info.number = number;
+            info.type = type;
+            info.name = name;
+            info.number_type = number_type;
+            info.number_label = number_label;
+            info.date = date;
+            info.duration = duration;
+            info.count = count;
+            info.personId = personId;
+            info.row = row;
+            info.nameRow = nameRow;
+            return info;
+        }
     }
 
     /**
@@ -222,17 +260,20 @@ public class RecentCallsListActivity extends ListActivity
 
     /** Adapter class to fill in data for the Call Log */
     // Geesun
-    final class RecentCallsArrayAdapter extends ArrayAdapter<RecentCallsInfo>
-            implements Runnable, ViewTreeObserver.OnPreDrawListener, View.OnClickListener {
+    final class RecentCallsArrayAdapter extends BaseAdapter
+            implements Runnable, ViewTreeObserver.OnPreDrawListener, View.OnClickListener,
+            CallLogGroups.OnPageLoadedListener {
         HashMap<String, ContactInfo> mContactInfo;
-        private final LinkedList<CallerInfoQuery> mRequests;
+        private final CallerInfoQueue mRequests;
+        private final CallLogWriteBack mWriteBack;
+        private volatile boolean mScrolling;
         private volatile boolean mDone;
         private boolean mLoading = true;
         ViewTreeObserver.OnPreDrawListener mPreDrawListener;
         private static final int REDRAW = 1;
         private static final int START_THREAD = 2;
         private boolean mFirst;
-        private Thread mCallerIdThread;
+        private volatile Thread mCallerIdThread;
 
         private CharSequence[] mLabelArray;
         private SparseArray<SoftReference<Bitmap>> mBitmapCache = null;
@@ -244,7 +285,17 @@ public class RecentCallsListActivity extends ListActivity
         private int mLayout;
         private LayoutInflater mInflater;
         private Context mContext;
-        List<RecentCallsInfo> mCallLogs;
+        private CallLogGroups mCallLogs = CallLogGroups.EMPTY;
+        private int mFirstVisible;
+        private final BindProbe mBindProbe = new BindProbe(TAG, "RecentCallsArrayAdapter");
+
+        // Preferences, read once per data change
+        private boolean mShowDialButton;
+        private boolean mShowNumber;
+        private boolean mShowLabel;
+        private boolean mRelativeTime;
+        private boolean mShowPic;
+        private String mDateFormat;
 
         public void onClick(View view) {
             String number = (String) view.getTag();
@@ -279,16 +330,13 @@ public class RecentCallsListActivity extends ListActivity
             }
         };
 
-        public RecentCallsArrayAdapter(Context context, int textViewResourceId,
-                List<RecentCallsInfo> objects) {
-			
-            super(context, R.layout.recent_calls_list_item, objects);
+        public RecentCallsArrayAdapter(Context context, int textViewResourceId) {
             mContext = context;
-            mCallLogs = objects;
 			
             mLayout = R.layout.recent_calls_list_item;
             mContactInfo = new HashMap<String, ContactInfo>();
-            mRequests = new LinkedList<CallerInfoQuery>();
+            mRequests = new CallerInfoQueue();
+            mWriteBack = new CallLogWriteBack();
             mPreDrawListener = null;
 
             mDrawableIncoming = getResources().getDrawable(
@@ -305,7 +353,7 @@ public class RecentCallsListActivity extends ListActivity
                     
             mBitmapCache = new SparseArray<SoftReference<Bitmap>>();
 
-            // TODO Auto-generated constructor stub
+            loadPrefs();
         }
 
         public View getView(int position, View convertView, ViewGroup parent) {
@@ -322,6 +370,34 @@ public class RecentCallsListActivity extends ListActivity
             return v;
         }
 
+        /**
+         * Replaces the groups shown, closing the previous ones.
+         */
+        void setCallLogs(CallLogGroups callLogs) {
+            callLogs.takeOver(mCallLogs, mFirstVisible);
+            callLogs.setOnPageLoadedListener(this);
+            mCallLogs.close();
+            mCallLogs = callLogs;
+            notifyDataSetChanged();
+        }
+
+        public void onPageLoaded() {
+            // Only the entries changed, the preferences don't need reloading
+            super.notifyDataSetChanged();
+        }
+
+        public int getCount() {
+            return mCallLogs.getCount();
+        }
+
+        public RecentCallsInfo getItem(int position) {
+            return mCallLogs.get(position);
+        }
+
+        public long getItemId(int position) {
+            return position;
+        }
+
         void setLoading(boolean loading) {
             mLoading = loading;
         }
@@ -340,8 +416,29 @@ public class RecentCallsListActivity extends ListActivity
             return mContactInfo.get(number);
         }
 
+        /**
+         * Tells the lookup thread which rows are on screen, so that their
+         * numbers get looked up first.
+         */
+        void setVisibleRange(int first, int last) {
+            mFirstVisible = first;
+            mRequests.setVisibleRange(first, last);
+        }
+
+        /**
+         * Holds back the call log updates while the list is scrolling.
+         */
+        void setScrolling(boolean scrolling) {
+            mScrolling = scrolling;
+            if (!scrolling && mWriteBack.hasPending()) {
+                // Let the lookup thread write the pending updates
+                mRequests.wakeUp();
+            }
+        }
+
         public void startRequestProcessing() {
             mDone = false;
+            mRequests.start();
             mCallerIdThread = new Thread(this);
             mCallerIdThread.setPriority(Thread.MIN_PRIORITY);
             mCallerIdThread.start();
@@ -349,8 +446,10 @@ public class RecentCallsListActivity extends ListActivity
 
         public void stopRequestProcessing() {
             mDone = true;
+            mRequests.stop();
             if (mCallerIdThread != null) {
                 mCallerIdThread.interrupt();
+                mCallerIdThread = null;
             }
             mHandler.removeMessages(START_THREAD);
         }
@@ -361,6 +460,16 @@ public class RecentCallsListActivity extends ListActivity
             }
         }
 
+        /**
+         * Seeds the cache with contacts resolved in bulk, so that bound rows
+         * don't need to look them up one by one.
+         */
+        void addContactInfo(HashMap<String, ContactInfo> contacts) {
+            synchronized (mContactInfo) {
+                mContactInfo.putAll(contacts);
+            }
+        }
+
         private void updateCallLog(CallerInfoQuery ciq, ContactInfo ci) {
             // Check if they are different. If not, don't update.
             if (TextUtils.equals(ciq.name, ci.name)
@@ -368,24 +477,9 @@ public class RecentCallsListActivity extends ListActivity
                     && ciq.numberType == ci.type) {
                 return;
             }
-            ContentValues values = new ContentValues(3);
-
-            values.put(Calls.CACHED_NAME, ci.name);
-            values.put(Calls.CACHED_NUMBER_TYPE, ci.type);
-            values.put(Calls.CACHED_NUMBER_LABEL, ci.label);
-
-            try {
-                // Log.e(TAG,"Update call log, number = "+ciq.number );
-                RecentCallsListActivity.this.getContentResolver().update(
-                        Calls.CONTENT_URI, values,
-                        Calls.NUMBER + " like '%" + ciq.number + "'", null);
-            } catch (SQLiteDiskIOException e) {
-                Log.w(TAG, "Exception while updating call info", e);
-            } catch (SQLiteFullException e) {
-                Log.w(TAG, "Exception while updating call info", e);
-            } catch (SQLiteDatabaseCorruptException e) {
-                Log.w(TAG, "Exception while updating call info", e);
-            }
+            // Written to the call log once the lookups are done and the list
+            // isn't scrolling
+            mWriteBack.add(ciq.number, ci);
         }
 
         private void enqueueRequest(String number, int position,
@@ -397,9 +491,17 @@ public class RecentCallsListActivity extends ListActivity
             ciq.name = name;
             ciq.numberType = numberType;
             ciq.numberLabel = numberLabel;
-            synchronized (mRequests) {
-                mRequests.add(ciq);
-                mRequests.notifyAll();
+
+            CallerInfoQuery dropped = mRequests.add(ciq);
+
+            if (dropped != null) {
+                // Forget the pending marker so the number is queued again
+                // when its row comes back on screen
+                synchronized (mContactInfo) {
+                    if (mContactInfo.get(dropped.number) == ContactInfo.EMPTY) {
+                        mContactInfo.remove(dropped.number);
+                    }
+                }
             }
         }
 
@@ -409,10 +511,8 @@ public class RecentCallsListActivity extends ListActivity
             ContactInfo info = mContactInfo.get(ciq.number);
 
             if (info != null && info != ContactInfo.EMPTY) {
-                synchronized (mRequests) {
-                    if (mRequests.isEmpty()) {                    	
-                        mHandler.sendEmptyMessage(REDRAW);
-                    }
+                if (mRequests.isEmpty()) {
+                    mHandler.sendEmptyMessage(REDRAW);
                 }
             } else {
 
@@ -443,11 +543,10 @@ public class RecentCallsListActivity extends ListActivity
                         info.formattedNumber = null;
 
                         mContactInfo.put(ciq.number, info);
+                        mContactInfoCache.put(ciq.number, info);
                         // Inform list to update this item, if in view
-                        synchronized (mRequests) {
-                            if (mRequests.isEmpty()) {
-                                mHandler.sendEmptyMessage(REDRAW);
-                            }
+                        if (mRequests.isEmpty()) {
+                            mHandler.sendEmptyMessage(REDRAW);
                         }
                     }
                     phonesCursor.close();
@@ -463,23 +562,26 @@ public class RecentCallsListActivity extends ListActivity
          * @see java.lang.Runnable#run()
          */
         public void run() {
-            while (!mDone) {
+            final Thread thread = Thread.currentThread();
+
+            // A thread replaced by a restart exits, even if mDone was reset
+            while (!mDone && thread == mCallerIdThread) {
                 CallerInfoQuery ciq = null;
 
-                synchronized (mRequests) {
-                    if (!mRequests.isEmpty()) {
-                        ciq = mRequests.removeFirst();
-                    } else {
-                        try {
-                            mRequests.wait(1000);
-                        } catch (InterruptedException ie) {// Ignore and continue processing requests
-                        }
-                    }
+                if (mRequests.isEmpty() && !mScrolling) {
+                    mWriteBack.flush(getContentResolver());
+                }
+                try {
+                    // Blocks until there is a request or processing stops
+                    ciq = mRequests.take();
+                } catch (InterruptedException ie) {// Ignore and continue processing requests
                 }
                 if (ciq != null) {
                     queryContactInfo(ciq);
                 }
             }
+            // Don't lose the updates when processing stops
+            mWriteBack.flush(getContentResolver());
         }
 
         public View newView(Context context, int position, ViewGroup parent) {      
@@ -505,31 +607,60 @@ public class RecentCallsListActivity extends ListActivity
             return view;
         }
 
+        /**
+         * Reads the preferences used by {@link #bindView}, so that binding a
+         * row doesn't have to.
+         */
+        private void loadPrefs() {
+            mShowDialButton = prefs.getBoolean("cl_show_dial_button", true);
+            mShowNumber = prefs.getBoolean("cl_show_number", true);
+            mShowLabel = prefs.getBoolean("cl_show_label", true);
+            mRelativeTime = prefs.getBoolean("cl_relative_time", false);
+            mShowPic = prefs.getBoolean("cl_show_pic", true);
+
+            boolean showSeconds = prefs.getBoolean("cl_show_seconds", true);
+
+            if (DateFormat.is24HourFormat(mContext)) {
+                mDateFormat = showSeconds ? "MMM d, kk:mm:ss" : "MMM d, kk:mm";
+            } else {
+                mDateFormat = showSeconds ? "MMM d, h:mm:ssaa" : "MMM d, h:mmaa";
+            }
+        }
+
+        @Override
+        public void notifyDataSetChanged() {
+            loadPrefs();
+            super.notifyDataSetChanged();
+        }
+
         public void bindView(View view, Context context, int c) {	        	
+            mBindProbe.start();
+
             final RecentCallsListItemViews views = (RecentCallsListItemViews) view.getTag();
 	            
             RecentCallsInfo callsinfo = getItem(c);
-	            
-            // Log.e(TAG," c = " + c + ",callsinfo.number =" + callsinfo.number + " Name =" + callsinfo.name);
-	            
+
+            if (callsinfo == null) {
+                bindPlaceholder(views);
+                mBindProbe.end();
+                return;
+            }
+
             String number = callsinfo.number;
             String formattedNumber = null;
             String callerName = callsinfo.name; // c.getString(CALLER_NAME_COLUMN_INDEX);
             int callerNumberType = callsinfo.number_type;
             String callerNumberLabel = callsinfo.number_label; // c.getString(CALLER_NUMBERLABEL_COLUMN_INDEX);
-            int count = callsinfo.count;
 
             // Store away the number so we can call it directly if you click on the call icon
             views.callView.setTag(number);
 	            
-            if (!prefs.getBoolean("cl_show_dial_button", true)) {
+            if (!mShowDialButton) {
                 views.iconView.setTag(number);
                 views.iconView.setOnClickListener(this);
-                //views.iconView.setBackgroundResource(R.drawable.call_background);
             } else {
                 views.iconView.setTag(null);
                 views.iconView.setOnClickListener(null);
-                //views.iconView.setBackgroundResource(0);
             }
 
             // Lookup contacts with this number
@@ -540,22 +671,20 @@ public class RecentCallsListActivity extends ListActivity
                 // The db request should happen on a non-UI thread
                 info = ContactInfo.EMPTY;
                 mContactInfo.put(number, info);
-                Log.e(TAG, "get infor NULL" + number);
                 enqueueRequest(number, c, callerName, callerNumberType,
                         callerNumberLabel);
 	                
             } else if (info != ContactInfo.EMPTY) { // Has been queried
                 // Check if any data is different from the data cached in the
                 // calls db. If so, queue the request so that we can update
-                // the calls db.
-	            	
-                if (!TextUtils.equals(info.name, callerName)
+                // the calls db. Only once per entry, as the entry keeps the
+                // old values until the call log is queried again.
+                if (!callsinfo.updateQueued
+                        && (!TextUtils.equals(info.name, callerName)
                         || info.type != callerNumberType
-                        || !TextUtils.equals(info.label, callerNumberLabel)) {
-                    // Log.e(TAG,"info Name:" + info.name  + " CAll Name:" + callerName );
-                    // Log.e(TAG,"info type:" + info.type  + " CAll Type:" + callerNumberType );
-                    // Log.e(TAG,"info Label:" + info.label  + " CAll Label:" + callerNumberLabel );
+                        || !TextUtils.equals(info.label, callerNumberLabel))) {
                     // Something is amiss, so sync up.
+                    callsinfo.updateQueued = true;
                     enqueueRequest(number, c, callerName, callerNumberType,
                             callerNumberLabel);
                 }
@@ -580,116 +709,44 @@ public class RecentCallsListActivity extends ListActivity
                 label = callerNumberLabel;
 
                 // Format the cached call_log phone number
-                formattedNumber = formatPhoneNumber(number);
+                if (callsinfo.formattedNumber == null) {
+                    callsinfo.formattedNumber = formatPhoneNumber(number);
+                }
+                formattedNumber = callsinfo.formattedNumber;
             }
             // Set the text lines
             if (!TextUtils.isEmpty(name)) {
-                if (count != 1) {
-                    views.line1View.setText(name);
-                    views.countView.setText("(" + count + ")");
-                    views.countView.setVisibility(View.VISIBLE);
-                } else {
-                    views.line1View.setText(name);
-                    views.countView.setVisibility(View.GONE);
-                }
+                views.line1View.setText(name);
+                bindCount(views, callsinfo);
 	            	
                 CharSequence numberLabel = Phones.getDisplayLabel(context, ntype,
                         label, mLabelArray);
-                        
-                RelativeLayout.LayoutParams newLine1Layout = (RelativeLayout.LayoutParams) views.line1View.getLayoutParams();
-                RelativeLayout.LayoutParams newNumberLayout = (RelativeLayout.LayoutParams) views.numberView.getLayoutParams();
 
-                if (prefs.getBoolean("cl_show_number", true)) {       
+                if (mShowNumber) {       
                     views.numberView.setVisibility(View.VISIBLE);
                     views.numberView.setText(formattedNumber);
                 } else {
                     views.numberView.setVisibility(View.GONE);
                 }                
                 
-                if (!TextUtils.isEmpty(numberLabel) && prefs.getBoolean("cl_show_label", true)) {
+                if (!TextUtils.isEmpty(numberLabel) && mShowLabel) {
                     views.labelView.setVisibility(View.VISIBLE);
                     views.labelView.setText(numberLabel);
-                    
-                    //Wysie_Soh: Set layout rules programmatically                    
-                    newLine1Layout.addRule(RelativeLayout.ABOVE, R.id.label);
-                    newNumberLayout.addRule(RelativeLayout.ALIGN_PARENT_BOTTOM, 0);
-                    newNumberLayout.addRule(RelativeLayout.ALIGN_BASELINE, R.id.label);
-                    newNumberLayout.setMargins(5, 0, 0, 0);                    
-                    
-                    views.line1View.setLayoutParams(newLine1Layout);
-                    views.numberView.setLayoutParams(newNumberLayout);
-                    
+                    setLabelLayout(views, true);
                 } else {
                     views.labelView.setVisibility(View.GONE);
-                    
-                    //Wysie_Soh: Set layout rules programmatically                    
-                    newLine1Layout.addRule(RelativeLayout.ABOVE, R.id.number);
-                    newNumberLayout.addRule(RelativeLayout.ALIGN_PARENT_BOTTOM);
-                    newNumberLayout.addRule(RelativeLayout.ALIGN_BASELINE, 0);
-                    newNumberLayout.setMargins(0, -10, 0, 8);                    
-                    
-                    views.line1View.setLayoutParams(newLine1Layout);
-                    views.numberView.setLayoutParams(newNumberLayout);
+                    setLabelLayout(views, false);
                 }
             } else {
-                if (number.equals(CallerInfo.UNKNOWN_NUMBER)) {
-                    number = getString(R.string.unknown);
-                } else if (number.equals(CallerInfo.PRIVATE_NUMBER)) {
-                    number = getString(R.string.private_num);
-                } else if (number.equals(CallerInfo.PAYPHONE_NUMBER)) {
-                    number = getString(R.string.payphone);
-                } else if (number.equals(mVoiceMailNumber)) {
-                    number = getString(R.string.voicemail);
-                } else {
-                    // Just a raw number, and no cache, so format it nicely
-                    number = formatPhoneNumber(number);
-                }
-	                
-                if (count != 1) {
-                    views.line1View.setText(number);
-                    views.countView.setText("(" + count + ")");
-                    views.countView.setVisibility(View.VISIBLE);
-                } else {
-                    views.line1View.setText(number);
-                    views.countView.setVisibility(View.GONE);
-                }
-	                
+                views.line1View.setText(getDisplayNumber(callsinfo));
+                bindCount(views, callsinfo);
                 views.numberView.setVisibility(View.GONE);
                 views.labelView.setVisibility(View.GONE);
             }
 
-            int type = callsinfo.type; // c.getInt(CALL_TYPE_COLUMN_INDEX);
-            long date = callsinfo.date; // c.getLong(DATE_COLUMN_INDEX);
-	            
-            if (prefs.getBoolean("cl_relative_time", false)) {
-                // Set the date/time field by mixing relative and absolute times.
-                int flags = DateUtils.FORMAT_ABBREV_RELATIVE;
-
-                views.dateView.setText(
-                        DateUtils.getRelativeTimeSpanString(date,
-                        System.currentTimeMillis(), DateUtils.MINUTE_IN_MILLIS,
-                        flags));
-            } else {
-                String format = null;
-
-                if (DateFormat.is24HourFormat(context)) {
-                    if (prefs.getBoolean("cl_show_seconds", true)) {
-                        format = "MMM d, kk:mm:ss";
-                    } else {
-                        format = "MMM d, kk:mm";
-                    }
-                } else {
-                    if (prefs.getBoolean("cl_show_seconds", true)) {
-                        format = "MMM d, h:mm:ssaa";
-                    } else {
-                        format = "MMM d, h:mmaa";
-                    }                  	
-                }
-                
-                views.dateView.setText(DateFormat.format(format, date));                         
-            }
+            views.dateView.setText(getDateText(callsinfo));
             
-            if (prefs.getBoolean("cl_show_dial_button", true)) {
+            if (mShowDialButton) {
                 views.dividerView.setVisibility(View.VISIBLE);
                 views.callView.setVisibility(View.VISIBLE);
             } else {
@@ -698,7 +755,7 @@ public class RecentCallsListActivity extends ListActivity
             }
 
             // Set the icon
-            switch (type) {
+            switch (callsinfo.type) {
             case Calls.INCOMING_TYPE:
                 views.iconView.setImageDrawable(mDrawableIncoming);
                 break;
@@ -720,20 +777,10 @@ public class RecentCallsListActivity extends ListActivity
             }
             
             // Set the photo, if requested
-            if (prefs.getBoolean("cl_show_pic", true)) {          
-                Cursor phonesCursor = RecentCallsListActivity.this.getContentResolver().query(
-                                        Uri.withAppendedPath(Phones.CONTENT_FILTER_URL,
-                                        Uri.encode(number)), PHONES_PROJECTION, null, null, null);
-                
-                int personId = -1;
-                                        
-                if (phonesCursor != null) {
-                    if (phonesCursor.moveToFirst()) {
-                        personId = phonesCursor.getInt(PERSON_ID_COLUMN_INDEX);
-                    }
-                    phonesCursor.close();
-                }
-                            
+            if (mShowPic) {          
+                // The person was already resolved when the call log was grouped
+                int personId = callsinfo.personId;
+
                 Bitmap photo = null;
                 SoftReference<Bitmap> ref = mBitmapCache.get(personId);
                 if (ref != null) {
@@ -742,7 +789,6 @@ public class RecentCallsListActivity extends ListActivity
 
                 if (photo == null && personId != -1) {
                     try {
-                        //int id = c.getInt(ID_COLUMN_INDEX);
                         Uri uri = ContentUris.withAppendedId(People.CONTENT_URI, personId);
                         photo = People.loadContactPhoto(context, uri, R.drawable.ic_contact_list_picture, null);
                         mBitmapCache.put(personId, new SoftReference<Bitmap>(photo));
@@ -766,6 +812,120 @@ public class RecentCallsListActivity extends ListActivity
             else {
                 views.photoView.setVisibility(View.GONE);
             }            
+
+            mBindProbe.end();
+        }
+
+        /**
+         * Blanks a row whose entry is still being built. The list is
+         * notified once it is.
+         */
+        private void bindPlaceholder(RecentCallsListItemViews views) {
+            views.callView.setTag(null);
+            views.iconView.setTag(null);
+            views.iconView.setImageDrawable(null);
+            views.line1View.setText(null);
+            views.countView.setVisibility(View.GONE);
+            views.numberView.setVisibility(View.GONE);
+            views.labelView.setVisibility(View.GONE);
+            views.dateView.setText(null);
+            views.photoView.setImageResource(R.drawable.ic_contact_list_picture);
+        }
+
+        private void bindCount(RecentCallsListItemViews views, RecentCallsInfo callsinfo) {
+            if (callsinfo.count != 1) {
+                if (callsinfo.countText == null) {
+                    callsinfo.countText = "(" + callsinfo.count + ")";
+                }
+                views.countView.setText(callsinfo.countText);
+                views.countView.setVisibility(View.VISIBLE);
+            } else {
+                views.countView.setVisibility(View.GONE);
+            }
+        }
+
+        /**
+         * Returns the text shown for an entry without a name, cached on the
+         * entry.
+         */
+        private String getDisplayNumber(RecentCallsInfo callsinfo) {
+            if (callsinfo.displayNumber == null) {
+                String number = callsinfo.number;
+
+                if (number.equals(CallerInfo.UNKNOWN_NUMBER)) {
+                    number = getString(R.string.unknown);
+                } else if (number.equals(CallerInfo.PRIVATE_NUMBER)) {
+                    number = getString(R.string.private_num);
+                } else if (number.equals(CallerInfo.PAYPHONE_NUMBER)) {
+                    number = getString(R.string.payphone);
+                } else if (number.equals(mVoiceMailNumber)) {
+                    number = getString(R.string.voicemail);
+                } else {
+                    // Just a raw number, and no cache, so format it nicely
+                    number = formatPhoneNumber(number);
+                }
+                callsinfo.displayNumber = number;
+            }
+            return callsinfo.displayNumber;
+        }
+
+        /**
+         * Returns the date of an entry, formatted according to the preferences.
+         * The text is cached on the entry; relative times are refreshed once a
+         * minute.
+         */
+        private CharSequence getDateText(RecentCallsInfo callsinfo) {
+            if (mRelativeTime) {
+                // Set the date/time field by mixing relative and absolute times.
+                long now = System.currentTimeMillis();
+                long minute = now / DateUtils.MINUTE_IN_MILLIS;
+
+                if (callsinfo.dateText == null || callsinfo.dateFormat != null
+                        || callsinfo.dateMinute != minute) {
+                    callsinfo.dateText = DateUtils.getRelativeTimeSpanString(callsinfo.date,
+                            now, DateUtils.MINUTE_IN_MILLIS, DateUtils.FORMAT_ABBREV_RELATIVE);
+                    callsinfo.dateFormat = null;
+                    callsinfo.dateMinute = minute;
+                }
+            } else if (callsinfo.dateText == null || callsinfo.dateFormat != mDateFormat) {
+                callsinfo.dateText = DateFormat.format(mDateFormat, callsinfo.date);
+                callsinfo.dateFormat = mDateFormat;
+            }
+            return callsinfo.dateText;
+        }
+
+        /**
+         * Wysie_Soh: Sets the layout rules for the name and number, depending
+         * on whether the label is shown. The rules are only changed when the
+         * row switches between the two layouts.
+         */
+        private void setLabelLayout(RecentCallsListItemViews views, boolean showLabel) {
+            final int layout = showLabel ? RecentCallsListItemViews.LAYOUT_LABEL
+                    : RecentCallsListItemViews.LAYOUT_NO_LABEL;
+
+            if (views.layout == layout) {
+                return;
+            }
+            views.layout = layout;
+
+            RelativeLayout.LayoutParams newLine1Layout =
+                    (RelativeLayout.LayoutParams) views.line1View.getLayoutParams();
+            RelativeLayout.LayoutParams newNumberLayout =
+                    (RelativeLayout.LayoutParams) views.numberView.getLayoutParams();
+
+            if (showLabel) {
+                newLine1Layout.addRule(RelativeLayout.ABOVE, R.id.label);
+                newNumberLayout.addRule(RelativeLayout.ALIGN_PARENT_BOTTOM, 0);
+                newNumberLayout.addRule(RelativeLayout.ALIGN_BASELINE, R.id.label);
+                newNumberLayout.setMargins(5, 0, 0, 0);
+            } else {
+                newLine1Layout.addRule(RelativeLayout.ABOVE, R.id.number);
+                newNumberLayout.addRule(RelativeLayout.ALIGN_PARENT_BOTTOM);
+                newNumberLayout.addRule(RelativeLayout.ALIGN_BASELINE, 0);
+                newNumberLayout.setMargins(0, -10, 0, 8);
+            }
+            views.line1View.setLayoutParams(newLine1Layout);
+            views.numberView.setLayoutParams(newNumberLayout);
         }
         
         /*        
@@ -827,9 +987,6 @@ public class RecentCallsListActivity extends ListActivity
 
             if (activity != null && !activity.isFinishing()) {
                 // final RecentCallsListActivity.RecentCallsAdapter callsAdapter = activity.mAdapter;
-                final RecentCallsListActivity.RecentCallsArrayAdapter callsAdapter = activity.mArrayAdapter;
-
-                callsAdapter.setLoading(false);
                 activity.getUpdateCallLogsItem(cursor);
 				   
                 // callsAdapter.changeCursor(cursor);
@@ -839,106 +996,53 @@ public class RecentCallsListActivity extends ListActivity
         }
     }
     
-    public void addItemIntoList(RecentCallsInfo item) {    	
-        /*
-         if(item.number.startsWith(mIpPrefix))
-         item.number = item.number.substring(mIpPrefix.length());
-         
-         String chinaNum = "+86";		
-         if(item.number.startsWith(chinaNum))
-         item.number = item.number.substring(chinaNum.length());
-         */		
-		
-        for (int i = 0; i < mListCallLogs.size(); i++) {
-            if (PhoneNumberUtils.compare(mListCallLogs.get(i).number, item.number) ||
-                (mListCallLogs.get(i).personId == item.personId && item.personId != -1) ||
-                sloppyPhoneNumComparator(mListCallLogs.get(i).number, item.number)) {
-                if (mListCallLogs.get(i).name == null && item.name != null) {
-                    mListCallLogs.get(i).name = item.name;
-                    mListCallLogs.get(i).number_label = item.number_label;
-                    mListCallLogs.get(i).number_type = item.number_type;
-                }
-                    			
-                mListCallLogs.get(i).count++;
-                return;
-            }
-        }
-        mListCallLogs.add(item);
-    }
-    
-    
-    //Wysie_Soh: This method is written to make up for the current PhoneNumberUtils.compare
-    //The main issues is for these 2 numbers, say, +6591234567 and 010891234567, they will
-    //be detected as different numbers, although they are the same.
-    //This method simply matches the last 8 digits and returns it as true if the last 7 digits matches.
-    private boolean sloppyPhoneNumComparator(String num1, String num2) {
-        if (num1.length() < 8 || num2.length() < 8)
-            return false;          
-        
-        String number1 = PhoneNumberUtils.stripSeparators(num1);
-        String number2 = PhoneNumberUtils.stripSeparators(num2);        
-        number1 = number1.substring(num1.length() - 8);
-        number2 = number2.substring(num2.length() - 8);       
-
-        if (number1.equals(number2))
-            return true;
-        else
-            return false;
-    }
-    
+    /**
+     * Starts grouping the call log on a background thread. The groups are
+     * published through {@link #mAggregationHandler} as they are found.
+     */
     public void getUpdateCallLogsItem(Cursor cursor) {
-        mListCallLogs.clear();
+        cancelAggregation();
         if (cursor == null) {
+            mArrayAdapter.setLoading(false);
+            mArrayAdapter.setCallLogs(CallLogGroups.EMPTY);
             return;
         }
-    	
-        if (cursor.getCount() != 0) {
-            cursor.moveToFirst();
-            do { 
-                RecentCallsInfo item = new RecentCallsInfo();
-
-                item.number = cursor.getString(
-                        RecentCallsListActivity.NUMBER_COLUMN_INDEX);
-                item.type = cursor.getInt(
-                        RecentCallsListActivity.CALL_TYPE_COLUMN_INDEX);
-                item.name = cursor.getString(
-                        RecentCallsListActivity.CALLER_NAME_COLUMN_INDEX);
-                // Log.e(TAG,"Name =" + item.name + " number = " + item.number);
-				
-                item.number_label = cursor.getString(
-                        RecentCallsListActivity.CALLER_NUMBERLABEL_COLUMN_INDEX);
-                item.number_type = cursor.getInt(
-                        RecentCallsListActivity.CALLER_NUMBERTYPE_COLUMN_INDEX);
-                // Toast.makeText(RecentCallsListActivity.this, item.name + item.number_label, Toast.LENGTH_LONG).show();
-                item.date = cursor.getLong(
-                        RecentCallsListActivity.DATE_COLUMN_INDEX);
-                item.duration = cursor.getInt(
-                        RecentCallsListActivity.DURATION_COLUMN_INDEX);
-                
-                Cursor phonesCursor = RecentCallsListActivity.this.getContentResolver().query(
-                                        Uri.withAppendedPath(Phones.CONTENT_FILTER_URL,
-                                        Uri.encode(item.number)), PHONES_PROJECTION, null, null, null);
-                
-                item.personId = -1;
-        
-                if (phonesCursor != null) {
-                    if (phonesCursor.moveToFirst()) {
-                        item.personId = phonesCursor.getInt(PERSON_ID_COLUMN_INDEX);
-                    }
-                    phonesCursor.close();
-                }
-                
-                addItemIntoList(item);
-            } while (cursor.moveToNext());		
-			
-            cursor.close();
+
+        mAggregator = new CallLogAggregator(getContentResolver(), mContactInfoCache, cursor,
+                mAggregationHandler);
+        mAggregator.start();
+    }
+
+    private void cancelAggregation() {
+        if (mAggregator != null) {
+            mAggregator.cancel();
+            mAggregator = null;
         }
-        // Log.e(TAG,"getUpdateCallLogsItem");      
-              
-        mArrayAdapter.notifyDataSetChanged(); 
-		
     }
 
+    private final Handler mAggregationHandler = new Handler() {
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+            case CallLogAggregator.MESSAGE_PUBLISH:
+                CallLogAggregator.Snapshot snapshot = (CallLogAggregator.Snapshot) msg.obj;
+
+                if (snapshot.aggregator != mAggregator || snapshot.aggregator.isCancelled()) {
+                    // A newer query superseded this one
+                    snapshot.groups.close();
+                    return;
+                }
+                if (snapshot.done) {
+                    mAggregator = null;
+                }
+                mArrayAdapter.addContactInfo(snapshot.contacts);
+                mArrayAdapter.setLoading(false);
+                mArrayAdapter.setCallLogs(snapshot.groups);
+                break;
+            }
+        }
+    };
+
     @Override
     protected void onCreate(Bundle state) {
         super.onCreate(state);
@@ -949,18 +1053,21 @@ public class RecentCallsListActivity extends ListActivity
         // Typing here goes to the dialer
         setDefaultKeyMode(DEFAULT_KEYS_DIALER);
 
-        mListCallLogs = new ArrayList<RecentCallsInfo>();
         
         // mAdapter = new RecentCallsAdapter();
         mArrayAdapter = new RecentCallsArrayAdapter(this,
-                R.layout.recent_calls_list_item, mListCallLogs);
+                R.layout.recent_calls_list_item);
         getListView().setOnCreateContextMenuListener(this);
+        getListView().setOnScrollListener(this);
         // setListAdapter(mAdapter);
 
         setListAdapter(mArrayAdapter);
     
         mVoiceMailNumber = ((TelephonyManager) getSystemService(Context.TELEPHONY_SERVICE)).getVoiceMailNumber();
         mQueryHandler = new QueryHandler(this);
+        mContactInfoCache = ContactInfoCache.getInstance(this);
+        // Start reading the statistics now so the totals dialog opens right away
+        mCallLogStats = CallLogStats.getInstance(this);
 
         // Reset locale-based formatting cache
         sFormattingType = FORMATTING_TYPE_INVALID;       
@@ -969,10 +1076,12 @@ public class RecentCallsListActivity extends ListActivity
     @Override
     protected void onResume() {
         // The adapter caches looked up numbers, clear it so they will get
-        // looked up again.
+        // looked up again. Start over from the persistent cache, which is
+        // kept up to date with the contacts.
     	
         if (mArrayAdapter != null) {
             mArrayAdapter.clearCache();
+            mArrayAdapter.addContactInfo(mContactInfoCache.snapshot());
         }
 
         startQuery();
@@ -995,9 +1104,21 @@ public class RecentCallsListActivity extends ListActivity
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        cancelAggregation();
+        mArrayAdapter.setCallLogs(CallLogGroups.EMPTY);
         mArrayAdapter.stopRequestProcessing();
     }
 
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+            int totalItemCount) {
+        mArrayAdapter.setVisibleRange(firstVisibleItem,
+                firstVisibleItem + visibleItemCount - 1);
+    }
+
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        mArrayAdapter.setScrolling(scrollState != SCROLL_STATE_IDLE);
+    }
+
     @Override
     public void onWindowFocusChanged(boolean hasFocus) {
         super.onWindowFocusChanged(hasFocus);
@@ -1103,6 +1224,10 @@ public class RecentCallsListActivity extends ListActivity
 
         RecentCallsInfo item = mArrayAdapter.getItem(menuInfo.position);
 
+        if (item == null) {
+            // Still being built
+            return;
+        }
         String number = item.number;
         Uri numberUri = null;
         boolean isVoicemail = false;
@@ -1264,6 +1389,10 @@ public class RecentCallsListActivity extends ListActivity
          */
         case MENU_ITEM_DELETE_ALL_NUMBER: {
             RecentCallsInfo rci = mArrayAdapter.getItem(menuInfo.position);
+
+            if (rci == null) {
+                return true;
+            }
             String number = rci.number;
             String label = null;
             	
@@ -1285,6 +1414,10 @@ public class RecentCallsListActivity extends ListActivity
             
         case MENU_ITEM_DELETE_ALL_NAME: {
             RecentCallsInfo rci = mArrayAdapter.getItem(menuInfo.position);
+
+            if (rci == null) {
+                return true;
+            }
             String number = rci.number;               
             	
             if (number.equals(CallerInfo.UNKNOWN_NUMBER)) {
@@ -1444,7 +1577,13 @@ public class RecentCallsListActivity extends ListActivity
 
         // intent.setData(ContentUris.withAppendedId(CallLog.Calls.CONTENT_URI, id));
         
-        intent.putExtra("NUMBER", mListCallLogs.get(position).number);
+        RecentCallsInfo item = mArrayAdapter.getItem(position);
+
+        if (item == null) {
+            // Still being built
+            return;
+        }
+        intent.putExtra("NUMBER", item.number);
         startActivity(intent);
     }
     
@@ -1592,15 +1731,16 @@ public class RecentCallsListActivity extends ListActivity
         dialog.setContentView(R.layout.total_call_log);
         dialog.setTitle(R.string.cl_total_cl);
         dialog.show();
-    	
-        calcTotalTime();
-    	
-        TextView incoming = (TextView) dialog.findViewById(R.id.total_in);
 
-        incoming.setText(formatSecToMin(totalIncoming));
-        TextView outgoing = (TextView) dialog.findViewById(R.id.total_out);
+        final TextView incoming = (TextView) dialog.findViewById(R.id.total_in);
+        final TextView outgoing = (TextView) dialog.findViewById(R.id.total_out);
 
-        outgoing.setText(formatSecToMin(totalOutgoing));
+        mCallLogStats.requestTotals(new CallLogStats.OnTotalsListener() {
+            public void onTotals(CallLogStats.Summary summary) {
+                incoming.setText(formatSecToMin(summary.totals.incomingDuration));
+                outgoing.setText(formatSecToMin(summary.totals.outgoingDuration));
+            }
+        });
 
         Button buttonOK = (Button) dialog.findViewById(R.id.buttonOK);
 
@@ -1611,42 +1751,11 @@ public class RecentCallsListActivity extends ListActivity
         });
     }
     
-    private String formatSecToMin(int s) {
-        int min = s / 60;
-        int sec = s % 60;
+    private String formatSecToMin(long s) {
+        long min = s / 60;
+        long sec = s % 60;
         String res = min + " mins " + sec + " secs";
 
         return res;
     }
-    
-    private void calcTotalTime() {
-        totalIncoming = 0;
-        totalOutgoing = 0;
-        Cursor c = getContentResolver().query(
-                android.provider.CallLog.Calls.CONTENT_URI, null, null, null,
-                android.provider.CallLog.Calls.DEFAULT_SORT_ORDER);
-
-        startManagingCursor(c);
-    	
-        int typeColumn = c.getColumnIndex(android.provider.CallLog.Calls.TYPE);
-        int durationColumn = c.getColumnIndex(
-                android.provider.CallLog.Calls.DURATION);
-    	
-        if (c.moveToFirst()) {
-            do {
-                int callType = c.getInt(typeColumn);
-                int callDuration = c.getInt(durationColumn);
-                    
-                switch (callType) {
-                case android.provider.CallLog.Calls.INCOMING_TYPE:
-                    totalIncoming += callDuration;
-                    break;
-
-                case android.provider.CallLog.Calls.OUTGOING_TYPE:
-                    totalOutgoing += callDuration;
-                    break;
-                }
-            } while (c.moveToNext());
-        }
-    }
 }
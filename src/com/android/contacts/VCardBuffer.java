@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * A growable byte buffer that vCards are encoded into, in the charset of the
+ * export, so that they can be written out without building a String first.
+ * Buffers are meant to be reused with {@link #reset()}. Not thread safe.
+ */
+final class VCardBuffer {
+    private static final String LOG_TAG = "VCardBuffer";
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final byte PAD = '=';
+    private static final byte[] ENCODE64 = {
+        'A','B','C','D','E','F','G','H','I','J','K','L','M','N','O','P',
+        'Q','R','S','T','U','V','W','X','Y','Z','a','b','c','d','e','f',
+        'g','h','i','j','k','l','m','n','o','p','q','r','s','t','u','v',
+        'w','x','y','z','0','1','2','3','4','5','6','7','8','9','+','/'
+    };
+
+    private static final byte[] HEX = {
+        '0','1','2','3','4','5','6','7','8','9','A','B','C','D','E','F'
+    };
+
+    /**
+     * Specification requires CRLF must be inserted before the length of the
+     * line becomes more than 76. Assuming that the next character is a
+     * multi-byte character, it will become 6 bytes. 76 - 6 - 3 = 67
+     */
+    private static final int QP_LINE_LENGTH = 67;
+
+    private final String mCharset;
+    private byte[] mBytes = new byte[INITIAL_CAPACITY];
+    private int mLength;
+
+    /**
+     * @param charset the charset non-ASCII text is encoded with
+     */
+    public VCardBuffer(String charset) {
+        mCharset = charset;
+    }
+
+    public void reset() {
+        mLength = 0;
+    }
+
+    public int length() {
+        return mLength;
+    }
+
+    public int capacity() {
+        return mBytes.length;
+    }
+
+    /**
+     * Appends an ASCII character.
+     */
+    public void append(char ch) {
+        ensureCapacity(1);
+        mBytes[mLength++] = (byte) ch;
+    }
+
+    /**
+     * Appends the text in the charset of the buffer. Null is appended as the
+     * empty string, as the provider may return null for any value.
+     */
+    public void append(String str) {
+        if (str == null) {
+            return;
+        }
+        final int length = str.length();
+
+        for (int i = 0; i < length; i++) {
+            if (str.charAt(i) >= 0x80) {
+                append(getBytes(str));
+                return;
+            }
+        }
+        // Plain ASCII, the same in every charset used for vCards
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            mBytes[mLength++] = (byte) str.charAt(i);
+        }
+    }
+
+    public void append(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, mBytes, mLength, bytes.length);
+        mLength += bytes.length;
+    }
+
+    /**
+     * Returns the text encoded in the charset of the buffer, null being
+     * encoded as the empty string.
+     */
+    public byte[] getBytes(String str) {
+        if (str == null) {
+            return new byte[0];
+        }
+        try {
+            return str.getBytes(mCharset);
+        } catch (UnsupportedEncodingException e) {
+            Log.e(LOG_TAG, "Charset " + mCharset + " cannot be used. " +
+                    "Try default charset");
+            return str.getBytes();
+        }
+    }
+
+    /**
+     * Appends the data encoded in base64, folding the line with a CRLF and a
+     * space after every {@code lineLength} characters.
+     *
+     * @param column the number of characters already on the current line,
+     * counted towards the first fold
+     */
+    public void appendBase64(byte[] data, int column, int lineLength) {
+        final int encodedLength = (data.length + 2) / 3 * 4;
+        ensureCapacity(encodedLength + (column + encodedLength) / lineLength * 3);
+
+        final byte[] bytes = mBytes;
+        int position = mLength;
+        int lineCount = column;
+        int _3byte;
+        for (int i = 0; i < data.length; i += 3) {
+            final int remaining = data.length - i;
+            _3byte = (data[i] & 0xFF) << 16;
+            if (remaining > 1) {
+                _3byte += (data[i + 1] & 0xFF) << 8;
+            }
+            if (remaining > 2) {
+                _3byte += data[i + 2] & 0xFF;
+            }
+
+            for (int j = 0; j < 4; j++) {
+                if (j <= remaining) {
+                    bytes[position++] = ENCODE64[(_3byte >> (18 - 6 * j)) & 0x3F];
+                } else {
+                    bytes[position++] = PAD;
+                }
+                if (++lineCount >= lineLength) {
+                    bytes[position++] = '\r';
+                    bytes[position++] = '\n';
+                    bytes[position++] = ' ';
+                    lineCount = 0;
+                }
+            }
+        }
+        mLength = position;
+    }
+
+    /**
+     * Appends the text encoded in the charset of the buffer and then in
+     * quoted-printable, every byte escaped. Line breaks are written as CRLF,
+     * and soft line breaks are inserted to keep lines short.
+     */
+    public void appendQuotedPrintable(String str) {
+        final byte[] data = getBytes(str);
+        // Line breaks may double in size, and CR and LF are single bytes in
+        // all the charsets used, never part of another character.
+        final int maxEscaped = data.length * 2;
+        ensureCapacity(maxEscaped * 3 + (maxEscaped * 3 / QP_LINE_LENGTH + 1) * 3);
+
+        final byte[] bytes = mBytes;
+        int position = mLength;
+        int lineCount = 0;
+        for (int i = 0; i < data.length; i++) {
+            int value = data[i] & 0xFF;
+            int count = 1;
+
+            if (value == '\r' || value == '\n') {
+                if (value == '\r' && i + 1 < data.length && data[i + 1] == '\n') {
+                    i++;
+                }
+                value = '\r';
+                count = 2;
+            }
+            for (int j = 0; j < count; j++) {
+                bytes[position++] = '=';
+                bytes[position++] = HEX[value >> 4];
+                bytes[position++] = HEX[value & 0x0F];
+                lineCount += 3;
+
+                if (lineCount >= QP_LINE_LENGTH) {
+                    bytes[position++] = '=';
+                    bytes[position++] = '\r';
+                    bytes[position++] = '\n';
+                    lineCount = 0;
+                }
+                // The second byte of a line break
+                value = '\n';
+            }
+        }
+        mLength = position;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(mBytes, 0, mLength);
+    }
+
+    private void ensureCapacity(int extra) {
+        final int needed = mLength + extra;
+
+        if (needed > mBytes.length) {
+            byte[] bytes = new byte[Math.max(needed, mBytes.length * 2)];
+            System.arraycopy(mBytes, 0, bytes, 0, mLength);
+            mBytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2009 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.content.Context;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The contacts written by the last vCard export, each with a digest of its
+ * data, so that the next export can be limited to the contacts added,
+ * changed or deleted since. The provider keeps no modification time for
+ * people, hence the digests. Thread safe.
+ */
+final class VCardExportState {
+    private static final String LOG_TAG = "VCardExportState";
+
+    private static final String FILE_NAME = "vcard_export_state";
+    private static final String TEMP_FILE_NAME = FILE_NAME + ".tmp";
+    private static final int VERSION = 2;
+
+    private final String mVCardType;
+    /** Digest of each exported person, by person id */
+    private final SparseArray<byte[]> mDigests;
+
+    public VCardExportState(String vcardType) {
+        this(vcardType, new SparseArray<byte[]>());
+    }
+
+    private VCardExportState(String vcardType, SparseArray<byte[]> digests) {
+        mVCardType = vcardType;
+        mDigests = digests;
+    }
+
+    /**
+     * Records that the person was written with the given digest.
+     */
+    public synchronized void put(int personId, byte[] digest) {
+        mDigests.put(personId, digest);
+    }
+
+    /**
+     * Carries the entry of the person over from an older state, if it has
+     * one, for a person that exists but wasn't written this time.
+     */
+    public void copyFrom(VCardExportState older, int personId) {
+        final byte[] digest = older.get(personId);
+        if (digest != null) {
+            put(personId, digest);
+        }
+    }
+
+    private synchronized byte[] get(int personId) {
+        return mDigests.get(personId);
+    }
+
+    /**
+     * Returns true if the person was exported with the same digest.
+     */
+    public boolean isUnchanged(int personId, byte[] digest) {
+        return Arrays.equals(get(personId), digest);
+    }
+
+    /**
+     * Returns the people of this state that are not in {@code existing}.
+     */
+    public synchronized int[] getDeleted(SparseBooleanArray existing) {
+        final int size = mDigests.size();
+        int[] deleted = new int[size];
+        int count = 0;
+
+        for (int i = 0; i < size; i++) {
+            int personId = mDigests.keyAt(i);
+
+            if (!existing.get(personId)) {
+                deleted[count++] = personId;
+            }
+        }
+
+        int[] result = new int[count];
+        System.arraycopy(deleted, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * Returns the state saved by the last export of the given type, or null
+     * if there is none.
+     */
+    public static VCardExportState load(Context context, String vcardType) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(context.openFileInput(FILE_NAME)));
+            if (in.readInt() != VERSION || !vcardType.equals(in.readUTF())) {
+                return null;
+            }
+
+            final int size = in.readInt();
+            SparseArray<byte[]> digests = new SparseArray<byte[]>(size);
+
+            for (int i = 0; i < size; i++) {
+                int personId = in.readInt();
+                byte[] digest = new byte[in.readUnsignedByte()];
+
+                in.readFully(digest);
+                // Saved in ascending order of person id
+                digests.append(personId, digest);
+            }
+            return new VCardExportState(vcardType, digests);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not read the last export", e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the saved state with this one. Returns false if it failed, in
+     * which case the saved state is left as it was.
+     */
+    public synchronized boolean save(Context context) {
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    context.openFileOutput(TEMP_FILE_NAME, Context.MODE_PRIVATE)));
+            out.writeInt(VERSION);
+            out.writeUTF(mVCardType);
+
+            final int size = mDigests.size();
+            out.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                byte[] digest = mDigests.valueAt(i);
+
+                out.writeInt(mDigests.keyAt(i));
+                out.writeByte(digest.length);
+                out.write(digest);
+            }
+            out.close();
+            out = null;
+
+            File file = context.getFileStreamPath(FILE_NAME);
+            return context.getFileStreamPath(TEMP_FILE_NAME).renameTo(file);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not save the export", e);
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+}
@@ -23,8 +23,10 @@ import android.content.DialogInterface;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteException;
+import android.net.Uri;
 import android.os.Handler;
 import android.os.PowerManager;
+import android.provider.BaseColumns;
 import android.provider.Contacts;
 import android.provider.Contacts.People;
 import android.syncml.pim.PropertyNode;
@@ -32,21 +34,31 @@ import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.util.CharsetUtils;
 import android.util.Log;
+import android.util.SparseBooleanArray;
+import android.widget.Toast;
 
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.UnsupportedEncodingException;
-import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 
 public class VCardExporter {
     private static final String LOG_TAG = "VCardExporter";
@@ -83,14 +95,16 @@ public class VCardExporter {
 
     private class ConfirmListener implements DialogInterface.OnClickListener {
         private String mFileName;
+        private boolean mDifferential;
 
-        public ConfirmListener(String fileName) {
+        public ConfirmListener(String fileName, boolean differential) {
             mFileName = fileName;
+            mDifferential = differential;
         }
 
         public void onClick(DialogInterface dialog, int which) {
             if (which == DialogInterface.BUTTON_POSITIVE) {
-                startExport(mFileName);
+                startExport(mFileName, mDifferential);
             } else if (which == DialogInterface.BUTTON_NEGATIVE) {
             }
         }
@@ -100,10 +114,12 @@ public class VCardExporter {
             implements DialogInterface.OnCancelListener {
         private PowerManager.WakeLock mWakeLock;
         private String mFileName;
+        private boolean mDifferential;
         private boolean mCanceled = false;
 
-        public ActualExportThread(String fileName) {
+        public ActualExportThread(String fileName, boolean differential) {
             mFileName = fileName;
+            mDifferential = differential;
             PowerManager powerManager = (PowerManager)mParentContext.getSystemService(
                     Context.POWER_SERVICE);
             mWakeLock = powerManager.newWakeLock(
@@ -133,6 +149,14 @@ public class VCardExporter {
                 exporterImpl = new VCardExporterImpl(mParentContext.getContentResolver(),
                         outputStream, mVCardType);
 
+                VCardExportState exportState = null;
+                if (mDifferential) {
+                    exportState = new VCardExportState(mVCardType);
+                    // The first differential export writes every contact
+                    exporterImpl.setExportState(exportState,
+                            VCardExportState.load(mParentContext, mVCardType));
+                }
+
                 if (!exporterImpl.init()) {
                     String reason = getString(R.string.fail_reason_could_not_initialize_exporter,
                             exporterImpl.getErrorReason());
@@ -160,6 +184,35 @@ public class VCardExporter {
                     }
                     mProgressDialog.incrementProgressBy(1);
                 }
+                if (!exporterImpl.exportDeletedContacts()) {
+                    String reason = getString(R.string.fail_reason_error_occurred_during_export,
+                            exporterImpl.getErrorReason());
+                    mParentHandler.post(new ErrorMessageDisplayRunnable(reason));
+                    return;
+                }
+
+                // Wait for the last contacts to be written
+                exporterImpl.terminate();
+                if (exporterImpl.hasWriteFailed()) {
+                    String reason = getString(R.string.fail_reason_error_occurred_during_export,
+                            exporterImpl.getErrorReason());
+                    mParentHandler.post(new ErrorMessageDisplayRunnable(reason));
+                    return;
+                }
+
+                if (exportState != null) {
+                    // The next differential export starts from this one
+                    exportState.save(mParentContext);
+                }
+                if (mDifferential && exporterImpl.getExportedCount() == 0) {
+                    new File(mFileName).delete();
+                    mParentHandler.post(new Runnable() {
+                        public void run() {
+                            Toast.makeText(mParentContext, R.string.no_changed_contacts,
+                                    Toast.LENGTH_SHORT).show();
+                        }
+                    });
+                }
             } finally {
                 if (exporterImpl != null) {
                     exporterImpl.terminate();
@@ -218,6 +271,19 @@ public class VCardExporter {
      * an error dialog is shown.
      */
     public void startExportVCardToSdCard() {
+        startExportVCardToSdCard(false);
+    }
+
+    /**
+     * Like {@link #startExportVCardToSdCard()}, but only exports the contacts
+     * added or changed since the last export, with a deletion card for each
+     * contact deleted since.
+     */
+    public void startDifferentialExportVCardToSdCard() {
+        startExportVCardToSdCard(true);
+    }
+
+    private void startExportVCardToSdCard(boolean differential) {
         File targetDirectory = new File(mTargetDirectory);
 
         if (!(targetDirectory.exists() &&
@@ -238,8 +304,9 @@ public class VCardExporter {
 
             new AlertDialog.Builder(mParentContext)
                 .setTitle(R.string.confirm_export_title)
-                .setMessage(getString(R.string.confirm_export_message, fileName))
-                .setPositiveButton(android.R.string.ok, new ConfirmListener(fileName))
+                .setMessage(getString(differential ? R.string.confirm_export_changed_message
+                        : R.string.confirm_export_message, fileName))
+                .setPositiveButton(android.R.string.ok, new ConfirmListener(fileName, differential))
                 .setNegativeButton(android.R.string.cancel, null)
                 .show();
         }
@@ -295,8 +362,8 @@ public class VCardExporter {
         return null;
     }
 
-    private void startExport(String fileName) {
-        ActualExportThread thread = new ActualExportThread(fileName);
+    private void startExport(String fileName, boolean differential) {
+        ActualExportThread thread = new ActualExportThread(fileName, differential);
         displayReadingVCardDialog(thread, fileName);
         thread.start();
     }
@@ -356,6 +423,11 @@ class VCardExporterImpl {
     private static final String VCARD_PROPERTY_VERSION = "VERSION";
     private static final String VCARD_PROPERTY_BDAY = "BDAY";
     private static final String VCARD_PROPERTY_URL = "URL";
+    private static final String VCARD_PROPERTY_UID = "UID";
+
+    // Marks the card of a contact deleted since the last export.
+    private static final String VCARD_PROPERTY_X_DELETED = "X-DELETED";
+    private static final String VCARD_DATA_TRUE = "TRUE";
 
     // Properties for DoCoMo vCard.
     private static final String VCARD_PROPERTY_X_CLASS = "X-CLASS";
@@ -390,7 +462,22 @@ class VCardExporterImpl {
 
     private static final String SHIFT_JIS = "SHIFT_JIS";
 
+    // The contacts are encoded on up to this many threads, while the next ones are read.
+    private static final int MAX_ENCODING_THREADS = 4;
+    // Bounds the memory used by contacts read but not written yet, photos included.
+    private static final int MAX_PENDING_CARDS = 16;
+    // Buffers grown larger than this, e.g. by a big photo, are not reused.
+    private static final int MAX_REUSED_BUFFER_SIZE = 64 * 1024;
+    // Photo lines are folded after this many characters.
+    private static final int PHOTO_LINE_LENGTH = 73;
+
     private Cursor mCursor;
+    // The data of the people, each sorted by person id like mCursor.
+    private DataStream mPhones;
+    private DataStream mContactMethods;
+    private DataStream mOrganizations;
+    private DataStream mPhotos;
+    private DataStream mExtensions;
     private int mIdColumn;
     private int mNameColumn;
     private int mNotesColumn;
@@ -400,11 +487,36 @@ class VCardExporterImpl {
     private int mVCardType;
     private String mCharsetString;
     private static String mVCardAttributeCharset;
-    private OutputStream mOutputStream;  // mWriter will close this.
-    private Writer mWriter;
+    private OutputStream mOutputStream;  // mBufferedStream will close this.
+    private OutputStream mBufferedStream;
     private boolean mTerminateIsCalled;
 
-    private String mErrorReason = "No error";
+    private ExecutorService mEncoders;
+    // The cards being encoded, in the order they have to be written.
+    private final BlockingQueue<PendingCard> mPendingCards =
+            new ArrayBlockingQueue<PendingCard>(MAX_PENDING_CARDS);
+    // Put in mPendingCards after the last card.
+    private final PendingCard mEndOfCards = new PendingCard(new Callable<VCardBuffer>() {
+        public VCardBuffer call() {
+            return null;
+        }
+    }, 0, null);
+    // Buffers already written, to encode the next cards into.
+    private final BlockingQueue<VCardBuffer> mFreeBuffers =
+            new ArrayBlockingQueue<VCardBuffer>(MAX_PENDING_CARDS);
+    private CardWriterThread mWriterThread;
+    private volatile boolean mWriteFailed;
+
+    // Records the exported contacts, null if not needed.
+    private VCardExportState mExportState;
+    // The last export, to only export the contacts changed since. Null for a full export.
+    private VCardExportState mPreviousState;
+    // The people read so far, to find the ones deleted since the last export.
+    private final SparseBooleanArray mReadIds = new SparseBooleanArray();
+    private MessageDigest mDigest;
+    private int mExportedCount;
+
+    private volatile String mErrorReason = "No error";
 
     /**
      * @param resolver
@@ -431,15 +543,27 @@ class VCardExporterImpl {
                         VCARD_TYPE_DOCOMO : VCARD_TYPE_GENERIC));
     }
 
+    /**
+     * Must be called before {@link #init()}.
+     *
+     * @param exportState receives the fingerprints of all the contacts written, each of which
+     * gets a UID so that later differential exports can refer to it. Null for a plain export.
+     * @param previousState the state of the last export. If not null, only the contacts added
+     * or changed since are exported, followed by a deletion card for each contact deleted since.
+     */
+    public void setExportState(VCardExportState exportState, VCardExportState previousState) {
+        mExportState = exportState;
+        mPreviousState = previousState;
+    }
+
     /**
      * @return Returns true when initialization is successful and all the other methods are
      * available. Returns false otherwise.
      */
     public boolean init() {
-        try {
-            mWriter = new BufferedWriter(
-                    new OutputStreamWriter(mOutputStream, mCharsetString));
-        } catch (UnsupportedEncodingException e1) {
+        if (Charset.isSupported(mCharsetString)) {
+            mBufferedStream = new BufferedOutputStream(mOutputStream, 8192);
+        } else {
             Log.e(LOG_TAG, "Unsupported charset: " + mCharsetString);
             mErrorReason = "Encoding is not supported (usually this does not happen!): " +
                 mCharsetString;
@@ -453,8 +577,10 @@ class VCardExporterImpl {
                 People.PHONETIC_NAME,
         };
 
-        mCursor = mContentResolver.query(People.CONTENT_URI, projection, null, null, null);
-        if (mCursor == null || !mCursor.moveToFirst()) {
+        mCursor = mContentResolver.query(People.CONTENT_URI, projection, null, null,
+                People._ID + " ASC");
+        // A differential export without contacts still has to record the deletions
+        if (mCursor == null || (!mCursor.moveToFirst() && mExportState == null)) {
             if (mCursor != null) {
                 try {
                     mCursor.close();
@@ -466,14 +592,28 @@ class VCardExporterImpl {
             return false;
         }
 
+        if (mExportState != null) {
+            try {
+                mDigest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                Log.e(LOG_TAG, "MD5 is not available", e);
+                mErrorReason = "MD5 is not available.";
+                return false;
+            }
+        }
+
         mIdColumn = mCursor.getColumnIndex(People._ID);
         mNameColumn = mCursor.getColumnIndex(People.NAME);
         mNotesColumn = mCursor.getColumnIndex(People.NOTES);
         mPhoneticNameColumn = mCursor.getColumnIndex(People.PHONETIC_NAME);
 
+        openDataStreams();
+
         if (mVCardType == VCARD_TYPE_DOCOMO) {
             try {
-                mWriter.write(convertContactToVCard(new ContactData()));
+                VCardBuffer buffer = new VCardBuffer(mCharsetString);
+                convertContactToVCard(new ContactData(), buffer);
+                buffer.writeTo(mBufferedStream);
             } catch (IOException e) {
                 Log.e(LOG_TAG, "IOException occurred during exportOneContactData: " +
                         e.getMessage());
@@ -481,9 +621,91 @@ class VCardExporterImpl {
             }
         }
 
+        final int encodingThreads = Math.max(1,
+                Math.min(Runtime.getRuntime().availableProcessors(), MAX_ENCODING_THREADS));
+        mEncoders = Executors.newFixedThreadPool(encodingThreads);
+        mWriterThread = new CardWriterThread();
+        mWriterThread.start();
+
         return true;
     }
 
+    /**
+     * A card being encoded, with the fingerprint to record once it is written.
+     */
+    private static class PendingCard extends FutureTask<VCardBuffer> {
+        final int mPersonId;
+        // Null if nothing is to be recorded for the card
+        final byte[] mFingerprint;
+
+        public PendingCard(Callable<VCardBuffer> encoder, int personId, byte[] fingerprint) {
+            super(encoder);
+            mPersonId = personId;
+            mFingerprint = fingerprint;
+        }
+    }
+
+    /**
+     * Writes the encoded cards in the order they were read.
+     */
+    private class CardWriterThread extends Thread {
+        public CardWriterThread() {
+            super("VCardWriter");
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                PendingCard card;
+                try {
+                    card = mPendingCards.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (card == mEndOfCards) {
+                    return;
+                }
+                if (mWriteFailed) {
+                    // Keep draining, so that the reader doesn't block
+                    continue;
+                }
+                try {
+                    VCardBuffer buffer = card.get();
+                    if (buffer != null) {
+                        buffer.writeTo(mBufferedStream);
+                        if (buffer.capacity() <= MAX_REUSED_BUFFER_SIZE) {
+                            mFreeBuffers.offer(buffer);
+                        }
+                        if (card.mFingerprint != null) {
+                            mExportState.put(card.mPersonId, card.mFingerprint);
+                        }
+                    } else if (card.mFingerprint != null && mPreviousState != null) {
+                        // Not written, so the next export has to try again, or send its
+                        // deletion.
+                        mExportState.copyFrom(mPreviousState, card.mPersonId);
+                    }
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "IOException occurred during exportOneContactData: " +
+                            e.getMessage());
+                    mErrorReason = "IOException occurred: " + e.getMessage();
+                    mWriteFailed = true;
+                } catch (ExecutionException e) {
+                    Log.e(LOG_TAG, "Failed to encode a contact", e.getCause());
+                    mErrorReason = "Failed to encode a contact: " + e.getCause();
+                    mWriteFailed = true;
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Throwable e) {
+                    // Anything else must not end the thread either, or the reader blocks
+                    // on the full queue forever.
+                    Log.e(LOG_TAG, "Failed to write a contact", e);
+                    mErrorReason = "Failed to write a contact: " + e;
+                    mWriteFailed = true;
+                }
+            }
+        }
+    }
+
     @Override
     public void finalize() {
         if (!mTerminateIsCalled) {
@@ -492,18 +714,36 @@ class VCardExporterImpl {
     }
 
     public void terminate() {
-        if (mWriter != null) {
+        if (mTerminateIsCalled) {
+            return;
+        }
+        mTerminateIsCalled = true;
+        if (mWriterThread != null) {
+            // Let the cards read so far be written
+            try {
+                mPendingCards.put(mEndOfCards);
+                mWriterThread.join();
+            } catch (InterruptedException e) {
+                mWriterThread.interrupt();
+            }
+            mWriterThread = null;
+        }
+        if (mEncoders != null) {
+            mEncoders.shutdown();
+            mEncoders = null;
+        }
+        if (mBufferedStream != null) {
             try {
                 // Flush and sync the data so that a user is able to pull the SDCard just after the
                 // export.
-                mWriter.flush();
+                mBufferedStream.flush();
                 if (mOutputStream != null && mOutputStream instanceof FileOutputStream) {
                     try {
                         ((FileOutputStream)mOutputStream).getFD().sync();
                     } catch (IOException e) {
                     }
                 }
-                mWriter.close();
+                mBufferedStream.close();
             } catch (IOException e) {
             }
         }
@@ -514,6 +754,7 @@ class VCardExporterImpl {
             }
             mCursor = null;
         }
+        closeDataStreams();
     }
 
     public int getCount() {
@@ -535,9 +776,13 @@ class VCardExporterImpl {
             mErrorReason = "Not initialized or database has some problem.";
             return false;
         }
+        if (mWriteFailed) {
+            // mErrorReason was set by the writer
+            return false;
+        }
         String name = null;
         try {
-            ContactData contactData = new ContactData();
+            final ContactData contactData = new ContactData();
             int personId = mCursor.getInt(mIdColumn);
             name = contactData.mName = mCursor.getString(mNameColumn);
             contactData.mNote = mCursor.getString(mNotesColumn);
@@ -551,24 +796,109 @@ class VCardExporterImpl {
 
             mCursor.moveToNext();
 
-            String vcardString = convertContactToVCard(contactData);
-            try {
-                mWriter.write(vcardString);
-            } catch (IOException e) {
-                Log.e(LOG_TAG, "IOException occurred during exportOneContactData: " +
-                        e.getMessage());
-                mErrorReason = "IOException occurred: " + e.getMessage();
-                return false;
+            byte[] fingerprint = null;
+            if (mExportState != null) {
+                fingerprint = contactData.getFingerprint(mDigest);
+                if (mPreviousState != null) {
+                    mReadIds.put(personId, true);
+                    if (mPreviousState.isUnchanged(personId, fingerprint)) {
+                        mExportState.put(personId, fingerprint);
+                        return true;
+                    }
+                }
+                contactData.mUid = String.valueOf(personId);
             }
+            mExportedCount++;
+
+            final String entryName = name;
+            PendingCard card = new PendingCard(new Callable<VCardBuffer>() {
+                public VCardBuffer call() {
+                    VCardBuffer buffer = mFreeBuffers.poll();
+                    if (buffer == null) {
+                        buffer = new VCardBuffer(mCharsetString);
+                    } else {
+                        buffer.reset();
+                    }
+                    try {
+                        convertContactToVCard(contactData, buffer);
+                        return buffer;
+                    } catch (OutOfMemoryError error) {
+                        Log.e(LOG_TAG, "OutOfMemoryError occured. Ignore the entry: " +
+                                entryName);
+                        System.gc();
+                        return null;
+                    }
+                }
+            }, personId, fingerprint);
+            mEncoders.execute(card);
+            mPendingCards.put(card);
         } catch (OutOfMemoryError error) {
-            // Maybe some data (e.g. photo) is too big to have in memory. But it should be rare.
-            Log.e(LOG_TAG, "OutOfMemoryError occured. Ignore the entry: " + name);
+            // Maybe some data (e.g. photo) is too big to have in memory. The data streams are
+            // left part way through the contact, so the export cannot go on.
+            Log.e(LOG_TAG, "OutOfMemoryError occured while reading: " + name);
             System.gc();
+            mErrorReason = "Out of memory while reading " + name;
+            return false;
+        } catch (InterruptedException e) {
+            mErrorReason = "Export was interrupted.";
+            return false;
         }
 
         return true;
     }
 
+    /**
+     * Queues a deletion card for each contact of the previous export that was not read since.
+     * Must be called after the last contact was read.
+     */
+    public boolean exportDeletedContacts() {
+        if (mPreviousState == null || mWriteFailed) {
+            return !mWriteFailed;
+        }
+
+        final int[] deleted = mPreviousState.getDeleted(mReadIds);
+        if (deleted.length == 0) {
+            return true;
+        }
+        final VCardBuffer buffer = new VCardBuffer(mCharsetString);
+        for (int personId : deleted) {
+            appendVCardLine(buffer, VCARD_PROPERTY_BEGIN, VCARD_DATA_VCARD);
+            appendVCardLine(buffer, VCARD_PROPERTY_VERSION, VCARD_DATA_VERSION_V21);
+            appendVCardLine(buffer, VCARD_PROPERTY_UID, String.valueOf(personId));
+            appendVCardLine(buffer, VCARD_PROPERTY_X_DELETED, VCARD_DATA_TRUE);
+            appendVCardLine(buffer, VCARD_PROPERTY_END, VCARD_DATA_VCARD);
+        }
+        mExportedCount += deleted.length;
+
+        PendingCard card = new PendingCard(new Callable<VCardBuffer>() {
+            public VCardBuffer call() {
+                return buffer;
+            }
+        }, 0, null);
+        card.run();
+        try {
+            mPendingCards.put(card);
+        } catch (InterruptedException e) {
+            mErrorReason = "Export was interrupted.";
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return Returns the number of cards exported, deletion cards included.
+     */
+    public int getExportedCount() {
+        return mExportedCount;
+    }
+
+    /**
+     * @return Returns true if some contacts could not be written.
+     */
+    public boolean hasWriteFailed() {
+        return mWriteFailed;
+    }
+
     /**
      * @return Return the error reason if possible.
      */
@@ -576,177 +906,227 @@ class VCardExporterImpl {
         return mErrorReason;
     }
 
-    private void readAllPhones(ContactData contact, int personId) {
-        final String[] projection = new String[] {
-                Contacts.Phones.TYPE,
-                Contacts.Phones.LABEL,
-                Contacts.Phones.NUMBER,
-                Contacts.Phones.LABEL,
-        };
-        String selection = String.format("%s=%d", Contacts.Phones.PERSON_ID, personId);
-        Cursor cursor = null;
-        try {
-            cursor = mContentResolver.query(Contacts.Phones.CONTENT_URI,
-                    projection, selection, null, null);
-            if ((cursor != null) && (cursor.moveToFirst())) {
-                int typeColumn = cursor.getColumnIndex(Contacts.Phones.TYPE);
-                int labelColumn = cursor.getColumnIndex(Contacts.Phones.LABEL);
-                int numberColumn = cursor.getColumnIndex(Contacts.Phones.NUMBER);
-                do {
-                    TelData telData = new TelData(cursor.getInt(typeColumn),
-                            cursor.getString(labelColumn), cursor.getString(numberColumn));
-                    contact.mTel.add(telData);
-                } while (cursor.moveToNext());
-            }
-        } finally {
+    /**
+     * Rows of a table holding the data of the people, sorted by person id so
+     * that it can be read in a single pass alongside the people cursor.
+     */
+    private static class DataStream {
+        private final Cursor mCursor;
+        private final int mPersonIdColumn;
+
+        /**
+         * @param cursor may be null, in which case nobody has any data.
+         */
+        public DataStream(Cursor cursor, String personIdColumn) {
+            mCursor = cursor;
             if (cursor != null) {
-                cursor.close();
+                mPersonIdColumn = cursor.getColumnIndexOrThrow(personIdColumn);
+                cursor.moveToFirst();
+            } else {
+                mPersonIdColumn = -1;
             }
         }
-    }
 
-    private void readAllPhotos(ContactData contact, int personId) {
-        final String[] projection = new String[] {
-                Contacts.Photos.DATA,
-        };
-        String selection = String.format("%s=%d", Contacts.Photos.PERSON_ID, personId);
-        Cursor cursor = null;
-        try {
-            cursor = mContentResolver.query(Contacts.Photos.CONTENT_URI,
-                    projection, selection, null, null);
-            if ((cursor != null) && (cursor.moveToFirst())) {
-                int dataColumn = cursor.getColumnIndex(Contacts.Photos.DATA);
-
-                byte[] data;
-                do {
-                    data = cursor.getBlob(dataColumn);
-                    // Use some heuristics for guessing the format of the image.
-                    if (data != null && data.length > 0) {
-                        if (data.length >= 3 &&
-                                data[0] == 'G' && data[1] == 'I' && data[2] == 'F') {
-                            contact.mPhotoType = "GIF";
-                        } else if (data.length >= 4 &&
-                                data[0] == (byte)0x89 && data[1] == 'P' && data[2] == 'N' &&
-                                data[3] == 'G') {
-                            // Note: vCard 2.1 officially does not support PNG, but we may have it
-                            // and using X- word like "X-PNG" may not let importers know it is
-                            // PNG. So we use the String "PNG" as is...
-                            contact.mPhotoType = "PNG";
-                        } else if (data.length >= 2 &&
-                                data[0] == (byte)0xff && data[1] == (byte)0xd8) {
-                            contact.mPhotoType = "JPEG";
-                        } else {
-                            // TODO: vCard specification requires the other formats like TIFF...
-                            Log.d(LOG_TAG, "Unknown photo type. Ignore.");
-                            continue;
-                        }
-                    }
-                    String photoData = encodeBase64(data);
-                    if (photoData.length() > 0) {
-                        contact.mPhoto = photoData;
-                    }
-                } while (cursor.moveToNext());
+        public Cursor getCursor() {
+            return mCursor;
+        }
+
+        /**
+         * Skips the rows of the previous people and moves to the first row
+         * of the person. Returns false if the person has no rows.
+         */
+        public boolean moveToPerson(long personId) {
+            if (mCursor == null) {
+                return false;
             }
-        } finally {
-            if (cursor != null) {
-                cursor.close();
+            while (!mCursor.isAfterLast() && mCursor.getLong(mPersonIdColumn) < personId) {
+                mCursor.moveToNext();
+            }
+            return !mCursor.isAfterLast() && mCursor.getLong(mPersonIdColumn) == personId;
+        }
+
+        /**
+         * Moves to the next row, returning false if it isn't the person's.
+         */
+        public boolean moveToNext(long personId) {
+            return mCursor.moveToNext() && mCursor.getLong(mPersonIdColumn) == personId;
+        }
+
+        public void close() {
+            if (mCursor != null) {
+                try {
+                    mCursor.close();
+                } catch (SQLiteException e) {
+                }
             }
         }
     }
 
-    private void readAllAddresses(ContactData contact, int personId) {
-        final String[] projection = new String[] {
+    /**
+     * Queries each table holding the data of the people once, instead of
+     * once per person.
+     */
+    private void openDataStreams() {
+        mPhones = openDataStream(Contacts.Phones.CONTENT_URI, new String[] {
+                Contacts.Phones.PERSON_ID,
+                Contacts.Phones.TYPE,
+                Contacts.Phones.LABEL,
+                Contacts.Phones.NUMBER,
+        }, null, Contacts.Phones.PERSON_ID);
+        mContactMethods = openDataStream(Contacts.ContactMethods.CONTENT_URI, new String[] {
+                Contacts.ContactMethods.PERSON_ID,
                 Contacts.ContactMethods.TYPE,
                 Contacts.ContactMethods.LABEL,
                 Contacts.ContactMethods.DATA,
                 Contacts.ContactMethods.KIND,
+        }, Contacts.ContactMethods.KIND + " IN (1,2)", Contacts.ContactMethods.PERSON_ID);
+        mOrganizations = openDataStream(Contacts.Organizations.CONTENT_URI, new String[] {
+                Contacts.Organizations.PERSON_ID,
+                Contacts.Organizations.COMPANY,
+                Contacts.Organizations.TITLE,
+        }, null, Contacts.Organizations.PERSON_ID);
+        mPhotos = openDataStream(Contacts.Photos.CONTENT_URI, new String[] {
+                Contacts.Photos.PERSON_ID,
+                Contacts.Photos.DATA,
+        }, null, Contacts.Photos.PERSON_ID);
+        mExtensions = openDataStream(Contacts.Extensions.CONTENT_URI, new String[] {
+                Contacts.Extensions.PERSON_ID,
+                Contacts.Extensions.NAME,
+                Contacts.Extensions.VALUE,
+        }, null, Contacts.Extensions.PERSON_ID);
+    }
+
+    private DataStream openDataStream(Uri uri, String[] projection, String selection,
+            String personIdColumn) {
+        // Keep the rows of each person in the order they would be read on their own
+        Cursor cursor = mContentResolver.query(uri, projection, selection, null,
+                personIdColumn + " ASC, " + BaseColumns._ID + " ASC");
+        return new DataStream(cursor, personIdColumn);
+    }
+
+    private void closeDataStreams() {
+        final DataStream[] streams = new DataStream[] {
+                mPhones, mContactMethods, mOrganizations, mPhotos, mExtensions,
         };
-        String selection = String.format("%s=%d AND %s IN (1,2)",
-                Contacts.ContactMethods.PERSON_ID, personId, Contacts.ContactMethods.KIND);
-        Cursor cursor = null;
-        try {
-            cursor = mContentResolver.query(Contacts.ContactMethods.CONTENT_URI,
-                    projection, selection, null, null);
-            if ((cursor != null) && (cursor.moveToFirst())) {
-                int typeColumn = cursor.getColumnIndex(Contacts.ContactMethods.TYPE);
-                int labelColumn = cursor.getColumnIndex(Contacts.ContactMethods.LABEL);
-                int dataColumn = cursor.getColumnIndex(Contacts.ContactMethods.DATA);
-                int kindColumn = cursor.getColumnIndex(Contacts.ContactMethods.KIND);
-                do {
-                    int kind = cursor.getInt(kindColumn);
-
-                    switch(kind) {
-                    case Contacts.KIND_EMAIL:
-                        EmailData emailData = new EmailData(cursor.getInt(typeColumn),
-                                cursor.getString(labelColumn), cursor.getString(dataColumn));
-                        contact.mEmail.add(emailData);
-                        break;
-                    case Contacts.KIND_POSTAL:
-                        AddressData addr = new AddressData(cursor.getInt(typeColumn),
-                                cursor.getString(labelColumn), cursor.getString(dataColumn));
-                        contact.mAddr.add(addr);
-                        break;
-                    default:
-                        break;
-                    }
-                } while (cursor.moveToNext());
-            }
-        } finally {
-            if (cursor != null) {
-                cursor.close();
+        for (DataStream stream : streams) {
+            if (stream != null) {
+                stream.close();
             }
         }
+        mPhones = null;
+        mContactMethods = null;
+        mOrganizations = null;
+        mPhotos = null;
+        mExtensions = null;
     }
 
-    private void readAllOrgs(ContactData contactData, int personId) {
-        final String[] projection = new String[] {
-                Contacts.Organizations.COMPANY,
-                Contacts.Organizations.TITLE,
-        };
-        String selection = String.format("%s=%d", Contacts.ContactMethods.PERSON_ID, personId);
-        Cursor cursor = null;
-        try {
-            cursor = mContentResolver.query(Contacts.Organizations.CONTENT_URI,
-                    projection, selection, null, null);
-            if ((cursor != null) && (cursor.moveToFirst())) {
-                int companyColumn = cursor.getColumnIndex(Contacts.Organizations.COMPANY);
-                int titleColumn = cursor.getColumnIndex(Contacts.Organizations.TITLE);
-                do {
-                    contactData.mOrg =  cursor.getString(companyColumn);
-                    contactData.mTitle = cursor.getString(titleColumn);
-                } while (cursor.moveToNext());
+    private void readAllPhones(ContactData contact, int personId) {
+        if (mPhones == null || !mPhones.moveToPerson(personId)) {
+            return;
+        }
+        Cursor cursor = mPhones.getCursor();
+        int typeColumn = cursor.getColumnIndex(Contacts.Phones.TYPE);
+        int labelColumn = cursor.getColumnIndex(Contacts.Phones.LABEL);
+        int numberColumn = cursor.getColumnIndex(Contacts.Phones.NUMBER);
+        do {
+            TelData telData = new TelData(cursor.getInt(typeColumn),
+                    cursor.getString(labelColumn), cursor.getString(numberColumn));
+            contact.mTel.add(telData);
+        } while (mPhones.moveToNext(personId));
+    }
+
+    private void readAllPhotos(ContactData contact, int personId) {
+        if (mPhotos == null || !mPhotos.moveToPerson(personId)) {
+            return;
+        }
+        Cursor cursor = mPhotos.getCursor();
+        int dataColumn = cursor.getColumnIndex(Contacts.Photos.DATA);
+
+        byte[] data;
+        do {
+            data = cursor.getBlob(dataColumn);
+            // Use some heuristics for guessing the format of the image.
+            if (data != null && data.length > 0) {
+                if (data.length >= 3 &&
+                        data[0] == 'G' && data[1] == 'I' && data[2] == 'F') {
+                    contact.mPhotoType = "GIF";
+                } else if (data.length >= 4 &&
+                        data[0] == (byte)0x89 && data[1] == 'P' && data[2] == 'N' &&
+                        data[3] == 'G') {
+                    // Note: vCard 2.1 officially does not support PNG, but we may have it
+                    // and using X- word like "X-PNG" may not let importers know it is
+                    // PNG. So we use the String "PNG" as is...
+                    contact.mPhotoType = "PNG";
+                } else if (data.length >= 2 &&
+                        data[0] == (byte)0xff && data[1] == (byte)0xd8) {
+                    contact.mPhotoType = "JPEG";
+                } else {
+                    // TODO: vCard specification requires the other formats like TIFF...
+                    Log.d(LOG_TAG, "Unknown photo type. Ignore.");
+                    continue;
+                }
             }
-        } finally {
-            if (cursor != null) {
-                cursor.close();
+            // Encoded along with the rest of the card, off the reading thread
+            if (data != null && data.length > 0) {
+                contact.mPhoto = data;
             }
-        }
+        } while (mPhotos.moveToNext(personId));
     }
 
-    private void readAllExtensions(ContactData contactData, int personId) {
-        final String[] projection = new String[] {
-                Contacts.Extensions.NAME,
-                Contacts.Extensions.VALUE,
-        };
-        String selection = String.format("%s=%d", Contacts.Extensions.PERSON_ID, personId);
-        Cursor cursor = null;
-        try {
-            cursor = mContentResolver.query(Contacts.Extensions.CONTENT_URI,
-                    projection, selection, null, null);
-            if ((cursor != null) && (cursor.moveToFirst())) {
-                int nameColumn = cursor.getColumnIndex(Contacts.Extensions.NAME);
-                int valueColumn = cursor.getColumnIndex(Contacts.Extensions.VALUE);
-                do {
-                    contactData.mExtensions.put(
-                            cursor.getString(nameColumn),
-                            cursor.getString(valueColumn));
-                } while (cursor.moveToNext());
-            }
-        } finally {
-            if (cursor != null) {
-                cursor.close();
+    private void readAllAddresses(ContactData contact, int personId) {
+        if (mContactMethods == null || !mContactMethods.moveToPerson(personId)) {
+            return;
+        }
+        Cursor cursor = mContactMethods.getCursor();
+        int typeColumn = cursor.getColumnIndex(Contacts.ContactMethods.TYPE);
+        int labelColumn = cursor.getColumnIndex(Contacts.ContactMethods.LABEL);
+        int dataColumn = cursor.getColumnIndex(Contacts.ContactMethods.DATA);
+        int kindColumn = cursor.getColumnIndex(Contacts.ContactMethods.KIND);
+        do {
+            int kind = cursor.getInt(kindColumn);
+
+            switch(kind) {
+            case Contacts.KIND_EMAIL:
+                EmailData emailData = new EmailData(cursor.getInt(typeColumn),
+                        cursor.getString(labelColumn), cursor.getString(dataColumn));
+                contact.mEmail.add(emailData);
+                break;
+            case Contacts.KIND_POSTAL:
+                AddressData addr = new AddressData(cursor.getInt(typeColumn),
+                        cursor.getString(labelColumn), cursor.getString(dataColumn));
+                contact.mAddr.add(addr);
+                break;
+            default:
+                break;
             }
-        }
+        } while (mContactMethods.moveToNext(personId));
+    }
+
+    private void readAllOrgs(ContactData contactData, int personId) {
+        if (mOrganizations == null || !mOrganizations.moveToPerson(personId)) {
+            return;
+        }
+        Cursor cursor = mOrganizations.getCursor();
+        int companyColumn = cursor.getColumnIndex(Contacts.Organizations.COMPANY);
+        int titleColumn = cursor.getColumnIndex(Contacts.Organizations.TITLE);
+        do {
+            contactData.mOrg =  cursor.getString(companyColumn);
+            contactData.mTitle = cursor.getString(titleColumn);
+        } while (mOrganizations.moveToNext(personId));
+    }
+
+    private void readAllExtensions(ContactData contactData, int personId) {
+        if (mExtensions == null || !mExtensions.moveToPerson(personId)) {
+            return;
+        }
+        Cursor cursor = mExtensions.getCursor();
+        int nameColumn = cursor.getColumnIndex(Contacts.Extensions.NAME);
+        int valueColumn = cursor.getColumnIndex(Contacts.Extensions.VALUE);
+        do {
+            contactData.mExtensions.put(
+                    cursor.getString(nameColumn),
+                    cursor.getString(valueColumn));
+        } while (mExtensions.moveToNext(personId));
     }
 
     private String toHalfWidthString(String orgString) {
@@ -796,135 +1176,138 @@ class VCardExporterImpl {
         return builder.toString();
     }
 
-    private String convertContactToVCard(ContactData contactData) {
+    /**
+     * Encodes the contact into the buffer. May be called from several threads at once.
+     */
+    private void convertContactToVCard(ContactData contactData, VCardBuffer buffer) {
         // Some DoCoMo mobile devices cannot parse a VCard data which does not have empty field.
         final boolean isDoCoMo = (mVCardType == VCARD_TYPE_DOCOMO);
-        StringBuilder builder = new StringBuilder();
-        appendVCardLine(builder, VCARD_PROPERTY_BEGIN, VCARD_DATA_VCARD);
-        appendVCardLine(builder, VCARD_PROPERTY_VERSION, VCARD_DATA_VERSION_V21);
+        appendVCardLine(buffer, VCARD_PROPERTY_BEGIN, VCARD_DATA_VCARD);
+        appendVCardLine(buffer, VCARD_PROPERTY_VERSION, VCARD_DATA_VERSION_V21);
+
+        if (contactData.mUid != null) {
+            appendVCardLine(buffer, VCARD_PROPERTY_UID, contactData.mUid);
+        }
 
         if (!TextUtils.isEmpty(contactData.mName)) {
-            builder.append(VCARD_PROPERTY_NAME);
-            builder.append(VCARD_ATTR_SEPARATOR);
-            builder.append(mVCardAttributeCharset);
-            builder.append(VCARD_DATA_SEPARATOR);
-            builder.append(encodeSomeCharacters(contactData.mName));
-            builder.append(VCARD_ITEM_SEPARATOR);
-            builder.append(VCARD_ITEM_SEPARATOR);
-            builder.append(VCARD_ITEM_SEPARATOR);
-            builder.append(VCARD_ITEM_SEPARATOR);
-            builder.append(VCARD_COL_SEPARATOR);
+            buffer.append(VCARD_PROPERTY_NAME);
+            buffer.append(VCARD_ATTR_SEPARATOR);
+            buffer.append(mVCardAttributeCharset);
+            buffer.append(VCARD_DATA_SEPARATOR);
+            buffer.append(encodeSomeCharacters(contactData.mName));
+            buffer.append(VCARD_ITEM_SEPARATOR);
+            buffer.append(VCARD_ITEM_SEPARATOR);
+            buffer.append(VCARD_ITEM_SEPARATOR);
+            buffer.append(VCARD_ITEM_SEPARATOR);
+            buffer.append(VCARD_COL_SEPARATOR);
         } else if (isDoCoMo) {
-            appendVCardLine(builder, VCARD_PROPERTY_NAME, "");
+            appendVCardLine(buffer, VCARD_PROPERTY_NAME, "");
         }
 
         if (!TextUtils.isEmpty(contactData.mPhoneticName)) {
             // Note: There is no appropriate property for expressing phonetic name in VCard 2.1,
             //       while there is in VCard 3.0 (SORT-STRING).
             //       We choose to use DoCoMo's way since it is supported by Japanese mobile phones.
-            builder.append(VCARD_PROPERTY_SOUND);
-            builder.append(VCARD_ATTR_SEPARATOR);
-            builder.append(VCARD_ATTR_X_IRMC_N);
-            builder.append(VCARD_ATTR_SEPARATOR);
-            builder.append(mVCardAttributeCharset);
-            builder.append(VCARD_DATA_SEPARATOR);
+            buffer.append(VCARD_PROPERTY_SOUND);
+            buffer.append(VCARD_ATTR_SEPARATOR);
+            buffer.append(VCARD_ATTR_X_IRMC_N);
+            buffer.append(VCARD_ATTR_SEPARATOR);
+            buffer.append(mVCardAttributeCharset);
+            buffer.append(VCARD_DATA_SEPARATOR);
             // TODO: Not only DoCoMo but also other Japanese mobile careers requires this.
             String phoneticName =
                 (isDoCoMo ? toHalfWidthString(contactData.mPhoneticName) :
                     contactData.mPhoneticName);
-            builder.append(encodeSomeCharacters(phoneticName));
-            builder.append(VCARD_ITEM_SEPARATOR);
-            builder.append(VCARD_ITEM_SEPARATOR);
-            builder.append(VCARD_ITEM_SEPARATOR);
-            builder.append(VCARD_ITEM_SEPARATOR);
-            builder.append(VCARD_COL_SEPARATOR);
+            buffer.append(encodeSomeCharacters(phoneticName));
+            buffer.append(VCARD_ITEM_SEPARATOR);
+            buffer.append(VCARD_ITEM_SEPARATOR);
+            buffer.append(VCARD_ITEM_SEPARATOR);
+            buffer.append(VCARD_ITEM_SEPARATOR);
+            buffer.append(VCARD_COL_SEPARATOR);
         } else if (isDoCoMo) {
             // VCARD_ITEM_SEPARATOR should be inserted for DoCoMo devices.
-            builder.append(VCARD_PROPERTY_SOUND);
-            builder.append(VCARD_ATTR_SEPARATOR);
-            builder.append(VCARD_ATTR_X_IRMC_N);
-            builder.append(VCARD_DATA_SEPARATOR);
+            buffer.append(VCARD_PROPERTY_SOUND);
+            buffer.append(VCARD_ATTR_SEPARATOR);
+            buffer.append(VCARD_ATTR_X_IRMC_N);
+            buffer.append(VCARD_DATA_SEPARATOR);
             // Empty data.
-            builder.append(VCARD_ITEM_SEPARATOR);
-            builder.append(VCARD_ITEM_SEPARATOR);
-            builder.append(VCARD_ITEM_SEPARATOR);
-            builder.append(VCARD_ITEM_SEPARATOR);
-            builder.append(VCARD_COL_SEPARATOR);
+            buffer.append(VCARD_ITEM_SEPARATOR);
+            buffer.append(VCARD_ITEM_SEPARATOR);
+            buffer.append(VCARD_ITEM_SEPARATOR);
+            buffer.append(VCARD_ITEM_SEPARATOR);
+            buffer.append(VCARD_COL_SEPARATOR);
         }
 
         if (contactData.mTel.size() > 0) {
             for (TelData telData : contactData.mTel) {
-                appendVCardTelephoneLine(builder, telData.mType,
+                appendVCardTelephoneLine(buffer, telData.mType,
                         telData.mLabel, telData.mValue);
             }
         } else if (isDoCoMo) {
-            appendVCardTelephoneLine(builder, Contacts.Phones.TYPE_HOME, "", "");
+            appendVCardTelephoneLine(buffer, Contacts.Phones.TYPE_HOME, "", "");
         }
 
         if (contactData.mEmail.size() > 0) {
             for (EmailData emailData : contactData.mEmail) {
-                appendVCardEmailLine(builder, emailData.mType,
+                appendVCardEmailLine(buffer, emailData.mType,
                         emailData.mLabel, emailData.mValue);
             }
         } else if (isDoCoMo) {
-            appendVCardEmailLine(builder, Contacts.ContactMethods.TYPE_HOME, "", "");
+            appendVCardEmailLine(buffer, Contacts.ContactMethods.TYPE_HOME, "", "");
         }
 
         if (isDoCoMo) {
-            appendVCardAddressLinesForDoCoMo(builder, contactData);
+            appendVCardAddressLinesForDoCoMo(buffer, contactData);
         } else {
-            appendVCardAddressLinesForGeneric(builder, contactData);
+            appendVCardAddressLinesForGeneric(buffer, contactData);
         }
 
         if (!TextUtils.isEmpty(contactData.mOrg)) {
-            appendVCardLine(builder, VCARD_PROPERTY_ORG, contactData.mOrg, true, true);
+            appendVCardLine(buffer, VCARD_PROPERTY_ORG, contactData.mOrg, true, true);
         }
 
         if (!TextUtils.isEmpty(contactData.mTitle)) {
-            appendVCardLine(builder, VCARD_PROPERTY_TITLE, contactData.mTitle, true, true);
+            appendVCardLine(buffer, VCARD_PROPERTY_TITLE, contactData.mTitle, true, true);
         }
 
         if (!TextUtils.isEmpty(contactData.mNote)) {
-            appendVCardLine(builder, VCARD_PROPERTY_NOTE, contactData.mNote, true, true);
+            appendVCardLine(buffer, VCARD_PROPERTY_NOTE, contactData.mNote, true, true);
         }
 
-        if ((contactData.mPhoto != null) && (contactData.mPhoto.length() > 0)) {
-            // Note that contactData.mPhoto is already BASE64-encoded.
-            appendVCardPhotoLine(builder, contactData.mPhoto, contactData.mPhotoType);
+        if ((contactData.mPhoto != null) && (contactData.mPhoto.length > 0)) {
+            appendVCardPhotoLine(buffer, contactData.mPhoto, contactData.mPhotoType);
         }
 
-        appendVCardExtension(builder, contactData, VCARD_PROPERTY_BDAY, isDoCoMo);
+        appendVCardExtension(buffer, contactData, VCARD_PROPERTY_BDAY, isDoCoMo);
 
         // XXX: URL may have non-ascii chars. Should we add charset?
-        appendVCardExtension(builder, contactData, VCARD_PROPERTY_URL, isDoCoMo);
+        appendVCardExtension(buffer, contactData, VCARD_PROPERTY_URL, isDoCoMo);
 
         if (isDoCoMo) {
             if (contactData.mExtensions.containsKey(VCARD_PROPERTY_X_CLASS)) {
-                appendVCardExtension(builder, contactData, VCARD_PROPERTY_X_CLASS, true);
+                appendVCardExtension(buffer, contactData, VCARD_PROPERTY_X_CLASS, true);
             } else {
-                appendVCardLine(builder, VCARD_PROPERTY_X_CLASS, VCARD_DATA_PUBLIC);
+                appendVCardLine(buffer, VCARD_PROPERTY_X_CLASS, VCARD_DATA_PUBLIC);
             }
-            appendVCardExtension(builder, contactData, VCARD_PROPERTY_X_REDUCTION, true);
-            appendVCardExtension(builder, contactData, VCARD_PROPERTY_X_NO, true);
-            appendVCardExtension(builder, contactData, VCARD_PROPERTY_X_DCM_HMN_MODE, true);
+            appendVCardExtension(buffer, contactData, VCARD_PROPERTY_X_REDUCTION, true);
+            appendVCardExtension(buffer, contactData, VCARD_PROPERTY_X_NO, true);
+            appendVCardExtension(buffer, contactData, VCARD_PROPERTY_X_DCM_HMN_MODE, true);
         }
 
-        appendVCardLine(builder, VCARD_PROPERTY_END, VCARD_DATA_VCARD);
-
-        return builder.toString();
+        appendVCardLine(buffer, VCARD_PROPERTY_END, VCARD_DATA_VCARD);
     }
 
-    private void appendVCardAddressLinesForGeneric(StringBuilder builder, ContactData contactData) {
+    private void appendVCardAddressLinesForGeneric(VCardBuffer buffer, ContactData contactData) {
         for (AddressData addr : contactData.mAddr) {
-            appendVCardAddressLine(builder, addr.mType, addr.mLabel, addr.mValue);
+            appendVCardAddressLine(buffer, addr.mType, addr.mLabel, addr.mValue);
         }
     }
 
-    private void appendVCardAddressLinesForDoCoMo(StringBuilder builder, ContactData contactData) {
+    private void appendVCardAddressLinesForDoCoMo(VCardBuffer buffer, ContactData contactData) {
         boolean isAddrSet = false;
         for (AddressData addr : contactData.mAddr) {
             if ((!isAddrSet) && (addr.mType == Contacts.ContactMethods.TYPE_HOME)) {
-                appendVCardAddressLine(builder, addr.mType, addr.mLabel,
+                appendVCardAddressLine(buffer, addr.mType, addr.mLabel,
                         addr.mValue);
                 isAddrSet = true;
                 break;
@@ -933,7 +1316,7 @@ class VCardExporterImpl {
         if (!isAddrSet) {
             for (AddressData addr : contactData.mAddr) {
                 if ((!isAddrSet) && (addr.mType == Contacts.ContactMethods.TYPE_WORK)) {
-                    appendVCardAddressLine(builder, addr.mType, addr.mLabel,
+                    appendVCardAddressLine(buffer, addr.mType, addr.mLabel,
                             addr.mValue);
                     isAddrSet = true;
                     break;
@@ -943,7 +1326,7 @@ class VCardExporterImpl {
         if (!isAddrSet) {
             for (AddressData addr : contactData.mAddr) {
                 if ((!isAddrSet)  && (addr.mType == Contacts.ContactMethods.TYPE_OTHER)) {
-                    appendVCardAddressLine(builder, addr.mType, addr.mLabel,
+                    appendVCardAddressLine(buffer, addr.mType, addr.mLabel,
                             addr.mValue);
                     isAddrSet = true;
                     break;
@@ -953,7 +1336,7 @@ class VCardExporterImpl {
         if (!isAddrSet) {
             for (AddressData addr : contactData.mAddr) {
                 if ((!isAddrSet) && (addr.mType == Contacts.ContactMethods.TYPE_CUSTOM)) {
-                    appendVCardAddressLine(builder, addr.mType, addr.mLabel,
+                    appendVCardAddressLine(buffer, addr.mType, addr.mLabel,
                             addr.mValue);
                     isAddrSet = true;
                     break;
@@ -961,56 +1344,44 @@ class VCardExporterImpl {
             }
         }
         if (!isAddrSet) {
-            appendVCardAddressLine(builder, Contacts.ContactMethods.TYPE_HOME, "", "");
+            appendVCardAddressLine(buffer, Contacts.ContactMethods.TYPE_HOME, "", "");
         }
     }
 
-    private void appendVCardPhotoLine(StringBuilder builder, String encodedData, String type) {
-        StringBuilder tmpBuilder = new StringBuilder();
-        tmpBuilder.append(VCARD_PROPERTY_PHOTO);
-        tmpBuilder.append(VCARD_ATTR_SEPARATOR);
-        tmpBuilder.append(VCARD_ATTR_ENCODING_BASE64_V21);
-        tmpBuilder.append(VCARD_ATTR_SEPARATOR);
-        tmpBuilder.append("TYPE=");
-        tmpBuilder.append(type);
-        tmpBuilder.append(VCARD_DATA_SEPARATOR);
-        tmpBuilder.append(encodedData);
-
-        String tmpStr = tmpBuilder.toString();
-        tmpBuilder = new StringBuilder();
-        int lineCount = 0;
-        for (int i = 0; i < tmpStr.length(); i++) {
-            tmpBuilder.append(tmpStr.charAt(i));
-            lineCount++;
-            if (lineCount > 72) {
-                tmpBuilder.append(VCARD_COL_SEPARATOR);
-                tmpBuilder.append(VCARD_WS);
-                lineCount = 0;
-            }
-        }
-        builder.append(tmpBuilder.toString());
-        builder.append(VCARD_COL_SEPARATOR);
-        builder.append(VCARD_COL_SEPARATOR);
+    private void appendVCardPhotoLine(VCardBuffer buffer, byte[] data, String type) {
+        final int start = buffer.length();
+        buffer.append(VCARD_PROPERTY_PHOTO);
+        buffer.append(VCARD_ATTR_SEPARATOR);
+        buffer.append(VCARD_ATTR_ENCODING_BASE64_V21);
+        buffer.append(VCARD_ATTR_SEPARATOR);
+        buffer.append("TYPE=");
+        buffer.append(type);
+        buffer.append(VCARD_DATA_SEPARATOR);
+
+        // The property name counts towards the first line
+        buffer.appendBase64(data, buffer.length() - start, PHOTO_LINE_LENGTH);
+        buffer.append(VCARD_COL_SEPARATOR);
+        buffer.append(VCARD_COL_SEPARATOR);
     }
 
-    private void appendVCardAddressLine(StringBuilder builder,
+    private void appendVCardAddressLine(VCardBuffer buffer,
             int type, String label, String rawData) {
-        builder.append(VCARD_PROPERTY_ADR);
-        builder.append(VCARD_ATTR_SEPARATOR);
+        buffer.append(VCARD_PROPERTY_ADR);
+        buffer.append(VCARD_ATTR_SEPARATOR);
 
         boolean dataExists = !TextUtils.isEmpty(rawData);
 
         switch(type) {
         case Contacts.ContactMethods.TYPE_HOME:
-            builder.append(VCARD_ATTR_HOME);
+            buffer.append(VCARD_ATTR_HOME);
             if (dataExists) {
-                builder.append(VCARD_ATTR_SEPARATOR);
+                buffer.append(VCARD_ATTR_SEPARATOR);
             }
             break;
         case Contacts.ContactMethods.TYPE_WORK:
-            builder.append(VCARD_ATTR_WORK);
+            buffer.append(VCARD_ATTR_WORK);
             if (dataExists) {
-                builder.append(VCARD_ATTR_SEPARATOR);
+                buffer.append(VCARD_ATTR_SEPARATOR);
             }
             break;
         case Contacts.ContactMethods.TYPE_CUSTOM:
@@ -1019,8 +1390,8 @@ class VCardExporterImpl {
             // - it may contain non-ASCII characters
             // TODO: fix this.
             //
-            // builder.append(label);
-            // builder.append(VCARD_DATA_SEPARATOR);
+            // buffer.append(label);
+            // buffer.append(VCARD_DATA_SEPARATOR);
             // break;
         case Contacts.ContactMethods.TYPE_OTHER:
         default:
@@ -1030,230 +1401,137 @@ class VCardExporterImpl {
         }
 
         if (dataExists) {
-            builder.append(mVCardAttributeCharset);
-            builder.append(VCARD_ATTR_SEPARATOR);
-            builder.append(VCARD_ATTR_ENCODING_QP);
+            buffer.append(mVCardAttributeCharset);
+            buffer.append(VCARD_ATTR_SEPARATOR);
+            buffer.append(VCARD_ATTR_ENCODING_QP);
         }
-        builder.append(VCARD_DATA_SEPARATOR);
+        buffer.append(VCARD_DATA_SEPARATOR);
         if (dataExists) {
-            builder.append(VCARD_ITEM_SEPARATOR);
-            builder.append(encodeQuotedPrintable(rawData));
-            builder.append(VCARD_ITEM_SEPARATOR);
-            builder.append(VCARD_ITEM_SEPARATOR);
-            builder.append(VCARD_ITEM_SEPARATOR);
-            builder.append(VCARD_ITEM_SEPARATOR);
-            builder.append(VCARD_ITEM_SEPARATOR);
-        }
-        builder.append(VCARD_COL_SEPARATOR);
+            buffer.append(VCARD_ITEM_SEPARATOR);
+            buffer.appendQuotedPrintable(rawData);
+            buffer.append(VCARD_ITEM_SEPARATOR);
+            buffer.append(VCARD_ITEM_SEPARATOR);
+            buffer.append(VCARD_ITEM_SEPARATOR);
+            buffer.append(VCARD_ITEM_SEPARATOR);
+            buffer.append(VCARD_ITEM_SEPARATOR);
+        }
+        buffer.append(VCARD_COL_SEPARATOR);
     }
 
-    private void appendVCardEmailLine(StringBuilder builder, int type, String label, String data) {
-        builder.append(VCARD_PROPERTY_EMAIL);
-        builder.append(VCARD_ATTR_SEPARATOR);
+    private void appendVCardEmailLine(VCardBuffer buffer, int type, String label, String data) {
+        buffer.append(VCARD_PROPERTY_EMAIL);
+        buffer.append(VCARD_ATTR_SEPARATOR);
 
         switch(type) {
         case Contacts.ContactMethods.TYPE_CUSTOM:
-            if (label.equals(Contacts.ContactMethodsColumns.MOBILE_EMAIL_TYPE_NAME)) {
-                builder.append(VCARD_ATTR_CELL);
+            if (Contacts.ContactMethodsColumns.MOBILE_EMAIL_TYPE_NAME.equals(label)) {
+                buffer.append(VCARD_ATTR_CELL);
             } else {
                 // Ignore custom value.
-                builder.append(VCARD_ATTR_INTERNET);
+                buffer.append(VCARD_ATTR_INTERNET);
             }
             break;
         case Contacts.ContactMethods.TYPE_HOME:
-            builder.append(VCARD_ATTR_HOME);
+            buffer.append(VCARD_ATTR_HOME);
             break;
         case Contacts.ContactMethods.TYPE_WORK:
-            builder.append(VCARD_ATTR_WORK);
+            buffer.append(VCARD_ATTR_WORK);
             break;
         case Contacts.ContactMethods.TYPE_OTHER:
         default:
-            builder.append(VCARD_ATTR_INTERNET);
+            buffer.append(VCARD_ATTR_INTERNET);
             break;
         }
 
-        builder.append(VCARD_DATA_SEPARATOR);
-        builder.append(data);
-        builder.append(VCARD_COL_SEPARATOR);
+        buffer.append(VCARD_DATA_SEPARATOR);
+        buffer.append(data);
+        buffer.append(VCARD_COL_SEPARATOR);
     }
 
-    private void appendVCardTelephoneLine(StringBuilder builder,
+    private void appendVCardTelephoneLine(VCardBuffer buffer,
             int type, String label, String data) {
-        builder.append(VCARD_PROPERTY_TEL);
-        builder.append(VCARD_ATTR_SEPARATOR);
+        buffer.append(VCARD_PROPERTY_TEL);
+        buffer.append(VCARD_ATTR_SEPARATOR);
 
         switch(type) {
         case Contacts.Phones.TYPE_CUSTOM:
             // Ignore custom label.
-            builder.append(VCARD_ATTR_VOICE);
+            buffer.append(VCARD_ATTR_VOICE);
             break;
         case Contacts.Phones.TYPE_HOME:
-            builder.append(VCARD_ATTR_HOME);
-            builder.append(VCARD_ATTR_SEPARATOR);
-            builder.append(VCARD_ATTR_VOICE);
+            buffer.append(VCARD_ATTR_HOME);
+            buffer.append(VCARD_ATTR_SEPARATOR);
+            buffer.append(VCARD_ATTR_VOICE);
             break;
         case Contacts.Phones.TYPE_MOBILE:
-            builder.append(VCARD_ATTR_CELL);
+            buffer.append(VCARD_ATTR_CELL);
             break;
         case Contacts.Phones.TYPE_WORK:
-            builder.append(VCARD_ATTR_WORK);
-            builder.append(VCARD_ATTR_SEPARATOR);
-            builder.append(VCARD_ATTR_VOICE);
+            buffer.append(VCARD_ATTR_WORK);
+            buffer.append(VCARD_ATTR_SEPARATOR);
+            buffer.append(VCARD_ATTR_VOICE);
             break;
         case Contacts.Phones.TYPE_FAX_WORK:
-            builder.append(VCARD_ATTR_WORK);
-            builder.append(VCARD_ATTR_SEPARATOR);
-            builder.append(VCARD_ATTR_FAX);
+            buffer.append(VCARD_ATTR_WORK);
+            buffer.append(VCARD_ATTR_SEPARATOR);
+            buffer.append(VCARD_ATTR_FAX);
             break;
         case Contacts.Phones.TYPE_FAX_HOME:
-            builder.append(VCARD_ATTR_HOME);
-            builder.append(VCARD_ATTR_SEPARATOR);
-            builder.append(VCARD_ATTR_FAX);
+            buffer.append(VCARD_ATTR_HOME);
+            buffer.append(VCARD_ATTR_SEPARATOR);
+            buffer.append(VCARD_ATTR_FAX);
             break;
         case Contacts.Phones.TYPE_PAGER:
-            builder.append(VCARD_ATTR_VOICE);
+            buffer.append(VCARD_ATTR_VOICE);
             break;
         case Contacts.Phones.TYPE_OTHER:
-            builder.append(VCARD_ATTR_VOICE);
+            buffer.append(VCARD_ATTR_VOICE);
             break;
         default:
-            builder.append(VCARD_ATTR_VOICE);
+            buffer.append(VCARD_ATTR_VOICE);
             break;
         }
 
-        builder.append(VCARD_DATA_SEPARATOR);
-        builder.append(data);
-        builder.append(VCARD_COL_SEPARATOR);
+        buffer.append(VCARD_DATA_SEPARATOR);
+        buffer.append(data);
+        buffer.append(VCARD_COL_SEPARATOR);
     }
 
-    private void appendVCardExtension(StringBuilder builder, ContactData contactData,
+    private void appendVCardExtension(VCardBuffer buffer, ContactData contactData,
             String propertyName, boolean mustEmitSomething) {
         if (contactData.mExtensions.containsKey(propertyName)) {
             PropertyNode propertyNode =
                 PropertyNode.decode(contactData.mExtensions.get(propertyName));
-            appendVCardLine(builder, propertyName, propertyNode.propValue);
+            appendVCardLine(buffer, propertyName, propertyNode.propValue);
         } else if (mustEmitSomething) {
-            appendVCardLine(builder, propertyName, "");
+            appendVCardLine(buffer, propertyName, "");
         }
     }
 
-    private void appendVCardLine(StringBuilder builder, String propertyName, String data) {
-        appendVCardLine(builder, propertyName, data, false, false);
+    private void appendVCardLine(VCardBuffer buffer, String propertyName, String data) {
+        appendVCardLine(buffer, propertyName, data, false, false);
     }
 
-    private void appendVCardLine(StringBuilder builder, String field, String data,
+    private void appendVCardLine(VCardBuffer buffer, String field, String data,
             boolean needCharset, boolean needQuotedPrintable) {
-        builder.append(field);
+        buffer.append(field);
         if (needCharset) {
-            builder.append(VCARD_ATTR_SEPARATOR);
-            builder.append(mVCardAttributeCharset);
+            buffer.append(VCARD_ATTR_SEPARATOR);
+            buffer.append(mVCardAttributeCharset);
         }
 
         if (needQuotedPrintable) {
-            builder.append(VCARD_ATTR_SEPARATOR);
-            builder.append(VCARD_ATTR_ENCODING_QP);
-            data = encodeQuotedPrintable(data);
-        }
-
-        builder.append(VCARD_DATA_SEPARATOR);
-        builder.append(data);
-        builder.append(VCARD_COL_SEPARATOR);
-    }
-
-    // TODO: Replace with the method in Base64 class.
-    private static char PAD = '=';
-    private static final char[] ENCODE64 = {
-        'A','B','C','D','E','F','G','H','I','J','K','L','M','N','O','P',
-        'Q','R','S','T','U','V','W','X','Y','Z','a','b','c','d','e','f',
-        'g','h','i','j','k','l','m','n','o','p','q','r','s','t','u','v',
-        'w','x','y','z','0','1','2','3','4','5','6','7','8','9','+','/'
-    };
-
-    private String encodeBase64(byte[] data) {
-        if (data == null) {
-            return "";
-        }
-
-        char[] charBuffer = new char[(data.length + 2) / 3 * 4];
-        int position = 0;
-        int _3byte = 0;
-        for (int i=0; i<data.length-2; i+=3) {
-            _3byte = ((data[i] & 0xFF) << 16) + ((data[i+1] & 0xFF) << 8) + (data[i+2] & 0xFF);
-            charBuffer[position++] = ENCODE64[_3byte >> 18];
-            charBuffer[position++] = ENCODE64[(_3byte >> 12) & 0x3F];
-            charBuffer[position++] = ENCODE64[(_3byte >>  6) & 0x3F];
-            charBuffer[position++] = ENCODE64[_3byte & 0x3F];
-        }
-        switch(data.length % 3) {
-        case 1: // [111111][11 0000][0000 00][000000]
-            _3byte = ((data[data.length-1] & 0xFF) << 16);
-            charBuffer[position++] = ENCODE64[_3byte >> 18];
-            charBuffer[position++] = ENCODE64[(_3byte >> 12) & 0x3F];
-            charBuffer[position++] = PAD;
-            charBuffer[position++] = PAD;
-            break;
-        case 2: // [111111][11 1111][1111 00][000000]
-            _3byte = ((data[data.length-2] & 0xFF) << 16) + ((data[data.length-1] & 0xFF) << 8);
-            charBuffer[position++] = ENCODE64[_3byte >> 18];
-            charBuffer[position++] = ENCODE64[(_3byte >> 12) & 0x3F];
-            charBuffer[position++] = ENCODE64[(_3byte >>  6) & 0x3F];
-            charBuffer[position++] = PAD;
-            break;
-        }
-
-        return new String(charBuffer);
-    }
-
-    private String encodeQuotedPrintable(String str) {
-        {
-            // Replace "\n" and "\r" with "\r\n".
-            StringBuilder tmpBuilder = new StringBuilder();
-            int length = str.length();
-            for (int i = 0; i < length; i++) {
-                char ch = str.charAt(i);
-                if (ch == '\r') {
-                    if (i + 1 < length && str.charAt(i + 1) == '\n') {
-                        i++;
-                    }
-                    tmpBuilder.append("\r\n");
-                } else if (ch == '\n') {
-                    tmpBuilder.append("\r\n");
-                } else {
-                    tmpBuilder.append(str.charAt(i));
-                }
-            }
-            str = tmpBuilder.toString();
+            buffer.append(VCARD_ATTR_SEPARATOR);
+            buffer.append(VCARD_ATTR_ENCODING_QP);
         }
 
-        StringBuilder builder = new StringBuilder();
-        int index = 0;
-        int lineCount = 0;
-        byte[] strArray = null;
-
-        try {
-            strArray = str.getBytes(mCharsetString);
-        } catch (UnsupportedEncodingException e) {
-            Log.e(LOG_TAG, "Charset " + mCharsetString + " cannot be used. " +
-                    "Try default charset");
-            strArray = str.getBytes();
-        }
-        while (index < strArray.length) {
-            builder.append(String.format("=%02X", strArray[index]));
-            index += 1;
-            lineCount += 3;
-
-            if (lineCount >= 67) {
-                // Specification requires CRLF must be inserted before the length of the line
-                // becomes more than 76.
-                // Assuming that the next character is a multi-byte character, it will become
-                // 6 bytes.
-                // 76 - 6 - 3 = 67
-                builder.append("=\r\n");
-                lineCount = 0;
-            }
+        buffer.append(VCARD_DATA_SEPARATOR);
+        if (needQuotedPrintable) {
+            buffer.appendQuotedPrintable(data);
+        } else {
+            buffer.append(data);
         }
-
-        return builder.toString();
+        buffer.append(VCARD_COL_SEPARATOR);
     }
 
     // TODO: replace this with ContactStruct
@@ -1266,13 +1544,79 @@ class VCardExporterImpl {
         private String mOrg = "";
         private String mTitle = "";
         private String mNote = "";
-        private String mPhoto = "";
+        private byte[] mPhoto;
         private String mPhotoType = "JPG"; // Default
         private Map<String, String> mExtensions = new HashMap<String, String>();
+        private String mUid;
 
         public boolean isEmptyName() {
             return TextUtils.isEmpty(mName);
         }
+
+        /**
+         * Returns a digest of all the exported data, which changes when the contact does.
+         */
+        public byte[] getFingerprint(MessageDigest digest) {
+            update(digest, mName);
+            update(digest, mPhoneticName);
+            update(digest, mTel.size());
+            for (TelData tel : mTel) {
+                update(digest, tel.mType);
+                update(digest, tel.mLabel);
+                update(digest, tel.mValue);
+            }
+            update(digest, mEmail.size());
+            for (EmailData email : mEmail) {
+                update(digest, email.mType);
+                update(digest, email.mLabel);
+                update(digest, email.mValue);
+            }
+            update(digest, mAddr.size());
+            for (AddressData addr : mAddr) {
+                update(digest, addr.mType);
+                update(digest, addr.mLabel);
+                update(digest, addr.mValue);
+            }
+            update(digest, mOrg);
+            update(digest, mTitle);
+            update(digest, mNote);
+            if (mPhoto == null) {
+                update(digest, -1);
+            } else {
+                update(digest, mPhoto.length);
+                digest.update(mPhoto);
+            }
+            update(digest, mPhotoType);
+            // In a stable order
+            Map<String, String> extensions = new TreeMap<String, String>(mExtensions);
+            update(digest, extensions.size());
+            for (Map.Entry<String, String> entry : extensions.entrySet()) {
+                update(digest, entry.getKey());
+                update(digest, entry.getValue());
+            }
+            return digest.digest();
+        }
+
+        private void update(MessageDigest digest, int value) {
+            digest.update((byte) (value >>> 24));
+            digest.update((byte) (value >>> 16));
+            digest.update((byte) (value >>> 8));
+            digest.update((byte) value);
+        }
+
+        private void update(MessageDigest digest, String str) {
+            if (str == null) {
+                update(digest, -1);
+                return;
+            }
+            final int length = str.length();
+            update(digest, length);
+            for (int i = 0; i < length; i++) {
+                char ch = str.charAt(i);
+                digest.update((byte) (ch >>> 8));
+                digest.update((byte) ch);
+            }
+        }
     }
 
     private class AddressData {